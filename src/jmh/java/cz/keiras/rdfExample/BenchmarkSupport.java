@@ -0,0 +1,76 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.jena.ontology.OntDocumentManager;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.util.LocationMapper;
+
+
+/*
+ * Shared setup of the benchmarks.
+ * Data size is given by syntheticTriples parameter: 0 = example/dataset.rdf, otherwise SyntheticPatientGenerator.
+ * Ontologies are read with useLocalImports(): owl:imports of dasta.owl and ibd.owl are local files (IMPORTS_DIR),
+ * a measurement must not include downloads. Copies missing there are skipped by OntModel like unreachable URLs,
+ * without a connection attempt.
+ * */
+
+
+class BenchmarkSupport {
+	static final String EXAMPLE_ROOT = "http://mre.zcu.cz/id/ba613d1fc0d9300175611e31cca7cf9f525056cb";
+	static final String SYNTHETIC_ROOT = SyntheticPatientGenerator.ID_NS + "synthetic-0";
+
+	// local copies of the imported ontologies, file name = last segment of the URI
+	static final String IMPORTS_DIR = "example/imports/";
+	static final String[] REMOTE_IMPORTS = {
+			"https://mre.zcu.cz/ontology/dicom.owl",
+			"https://mre.zcu.cz/ontology/dscl.owl",
+			"https://mre.zcu.cz/ontology/sits.owl"};
+
+	private static PrintStream stdout;
+
+	static Model dataModel(long syntheticTriples) throws IOException{
+		if(syntheticTriples > 0)
+			return SyntheticPatientGenerator.generateModel(syntheticTriples, 42);
+		try(Reader reader = Files.newBufferedReader(Paths.get("example/dataset.rdf"), Charset.forName("UTF8"))){
+			return ModelFactory.createDefaultModel().read(reader, null, "N-TRIPLES");
+		}
+	}
+
+	// LocationMapper of the OntDocumentManager used by OntModel.read (and OntologyMetadata) -> local files
+	static void useLocalImports(){
+		LocationMapper mapper = OntDocumentManager.getInstance().getFileManager().getLocationMapper();
+		for(String uri : REMOTE_IMPORTS)
+			mapper.addAltEntry(uri, IMPORTS_DIR + uri.substring(uri.lastIndexOf('/') + 1));
+		// imported by ibd.owl
+		mapper.addAltEntry("https://mre.zcu.cz/ontology/dasta.owl", "example/dasta.owl");
+	}
+
+	static String traversalRoot(long syntheticTriples){
+		return syntheticTriples > 0 ? SYNTHETIC_ROOT : EXAMPLE_ROOT;
+	}
+
+	// RdfExplore.print* methods write to System.out, measure the work, not the console
+	static void silenceStdout(){
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream(){
+			@Override
+			public void write(int b){}
+
+			@Override
+			public void write(byte[] b, int off, int len){}
+		}));
+	}
+
+	static void restoreStdout(){
+		if(stdout != null)
+			System.setOut(stdout);
+	}
+}
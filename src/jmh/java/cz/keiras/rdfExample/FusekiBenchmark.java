@@ -0,0 +1,93 @@
+package cz.keiras.rdfExample;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * The three Fuseki query shapes against the in-process endpoint (EmbeddedFuseki):
+ * - http:  over loopback HTTP
+ * - local: directly against the Dataset
+ * each with and without the client-side result cache (QueryResultCache); updates invalidate the cached selects
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class FusekiBenchmark {
+	static final int PORT = 3031;
+	static final String ROOT = "http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b";
+	// inverse of Fuseki.moveTherapyFromIbdToPatient(), keeps the data unchanged between invocations
+	static final String MOVE_THERAPY_BACK =
+			"prefix ds:    <http://mre.zcu.cz/ontology/dasta.owl#>"
+			+ "prefix ibd:   <http://mre.zcu.cz/ontology/ibd.owl#>"
+			+ "delete{ ?patient ibd:hasTherapy ?therapy . }"
+			+ "insert{ ?ibd ibd:hasTherapy ?therapy . }"
+			+ "where{"
+			+ "?patient a ds:Patient ."
+			+ "?patient ibd:hasInflammatoryBowelDisease ?ibd ."
+			+ "?patient ibd:hasTherapy ?therapy ."
+			+ "}";
+
+	@Param({"http", "local"})
+	String mode;
+
+	@Param({"off", "on"})
+	String cache;
+
+	FusekiServer server;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		Dataset dataset = EmbeddedFuseki.exampleDataset();
+		server = EmbeddedFuseki.start(PORT, EmbeddedFuseki.DATASET_NAME, dataset);
+		if(mode.equals("local"))
+			Fuseki.useLocal(dataset);
+		else
+			Fuseki.useRemote(EmbeddedFuseki.serviceUrl(PORT, EmbeddedFuseki.DATASET_NAME));
+		Fuseki.useCache(cache.equals("on") ? new QueryResultCache() : null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		Fuseki.useCache(null);
+		server.stop();
+	}
+
+	@Benchmark
+	public Model constructDepth2(){
+		return Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(ROOT));
+	}
+
+	@Benchmark
+	public List<QuerySolution> selectTherapyOnIbd(){
+		return Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD));
+	}
+
+	// two updates per invocation (move + move back)
+	@Benchmark
+	public boolean updateMoveTherapy(){
+		Fuseki.fusekiUpdate(Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT));
+		return Fuseki.fusekiUpdate(MOVE_THERAPY_BACK);
+	}
+}
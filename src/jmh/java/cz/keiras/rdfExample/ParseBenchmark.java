@@ -0,0 +1,131 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// parsing of the example files into an in-memory graph, also from binary snapshots (BinarySnapshot)
+// and of a synthetic N-Triples file, sequentially and in chunks (ParallelNTriplesLoader)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Benchmark
+	public Graph parseDatasetRdf(){
+		Graph graph = GraphFactory.createDefaultGraph();
+		// N-Triples despite the extension
+		RDFParser.source("example/dataset.rdf").forceLang(Lang.NTRIPLES).parse(graph);
+		return graph;
+	}
+
+	@Benchmark
+	public Graph parseDataset2Ttl(){
+		Graph graph = GraphFactory.createDefaultGraph();
+		RDFParser.source("example/dataset2.ttl").lang(Lang.TURTLE).parse(graph);
+		return graph;
+	}
+
+	@Benchmark
+	public Graph parseDatasetSnapshot(Snapshot snapshot) throws IOException{
+		return BinarySnapshot.read(snapshot.file);
+	}
+
+
+	@Benchmark
+	public Graph parseSyntheticSequential(SyntheticFile synthetic){
+		Graph graph = GraphFactory.createDefaultGraph();
+		RDFParser.source(synthetic.file).forceLang(Lang.NTRIPLES).parse(graph);
+		return graph;
+	}
+
+	@Benchmark
+	public Graph parseSyntheticParallel(SyntheticFile synthetic, Threads threads) throws IOException{
+		Graph graph = GraphFactory.createDefaultGraph();
+		ParallelNTriplesLoader.parse(Collections.singletonMap(synthetic.file, Lang.NTRIPLES), StreamRDFLib.graph(graph),
+				threads.threads, 1 << 20, true);
+		return graph;
+	}
+
+
+	// dataset.rdf written as a snapshot with the prefixes of the example data
+	@State(Scope.Benchmark)
+	public static class Snapshot {
+		@Param({"NONE", "GZIP", "LZ4"})
+		BinarySnapshot.Compression compression;
+
+		Path file;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException{
+			file = Files.createTempFile("dataset", ".rdft");
+			BinarySnapshot.convert(Paths.get("example/dataset.rdf"), Lang.NTRIPLES, file, compression, BinarySnapshot.prefixes());
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException{
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	// N-Triples file of SyntheticPatientGenerator
+	@State(Scope.Benchmark)
+	public static class SyntheticFile {
+		@Param({"200000"})
+		long syntheticTriples;
+
+		Path file;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException{
+			file = Files.createTempFile("synthetic", ".nt");
+			SyntheticPatientGenerator.main(new String[]{String.valueOf(syntheticTriples), file.toString()});
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException{
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	// threads of the parallel parse (1 MB chunks), only parseSyntheticParallel runs once per value
+	@State(Scope.Benchmark)
+	public static class Threads {
+		// 0 = all cores
+		@Param({"1", "2", "0"})
+		int threads;
+
+		@Setup(Level.Trial)
+		public void setup(){
+			if(threads == 0)
+				threads = ParallelNTriplesLoader.DEFAULT_THREADS;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * RdfExplore analyses over the example data and synthetic data of growing size.
+ * Larger sizes need more heap, e.g. -Djmh.args="RdfExploreBenchmark -p syntheticTriples=100000000 -jvmArgs -Xmx48g"
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class RdfExploreBenchmark {
+
+	@Param({"0", "1000000"})
+	long syntheticTriples;
+
+	// mem = default in-memory graph, compact = read-only CompactGraph
+	@Param({"mem", "compact"})
+	String store;
+
+	Model model;
+	String root;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		BenchmarkSupport.useLocalImports();
+		model = BenchmarkSupport.dataModel(syntheticTriples);
+		if(store.equals("compact"))
+			model = ModelFactory.createModelForGraph(CompactGraph.copyOf(model.getGraph()));
+		root = BenchmarkSupport.traversalRoot(syntheticTriples);
+		BenchmarkSupport.silenceStdout();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		BenchmarkSupport.restoreStdout();
+	}
+
+	@Benchmark
+	public Set<RDFNode> findAllNodeTypesInModel1(){
+		return RdfExplore.findAllNodeTypesInModel1(model);
+	}
+
+	@Benchmark
+	public Set<RDFNode> findAllNodeTypesInModel2(){
+		return RdfExplore.findAllNodeTypesInModel2(model);
+	}
+
+	@Benchmark
+	public void printResourcesOfTypes(){
+		RdfExplore.printResourcesOfTypes(model, RdfExplore.findAllNodeTypesInModel2(model));
+	}
+
+	@Benchmark
+	public TypeProfiler.Profile typeProfile(){
+		return TypeProfiler.profile(model.getGraph());
+	}
+
+	@Benchmark
+	public void printPatientsByAge(){
+		RdfExplore.printPatientsByAge(model);
+	}
+
+	@Benchmark
+	public void traverseGraph(){
+		RdfExplore.traverseGraph(model, root);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	public OntModel loadOntology(){
+		OntModel ontology = RdfExplore.loadOntology("example/dasta.owl");
+		// OntModel is lazy, force the inference graph to be prepared
+		ontology.prepare();
+		return ontology;
+	}
+}
@@ -0,0 +1,67 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * Reasoning profiles: building the data model and querying all ds:Patient (incl. subclasses).
+ * Retained heap of the profiles: -Djmh.args="ReasoningBenchmark -prof gc" or Reasoning main.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ReasoningBenchmark {
+
+	@Param({"NONE", "RDFS", "OWL_MICRO", "MATERIALIZED"})
+	Reasoning.Profile profile;
+
+	@Param({"0", "100000"})
+	long syntheticTriples;
+
+	Model data;
+	Model schema;
+	Model model;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		BenchmarkSupport.useLocalImports();
+		data = BenchmarkSupport.dataModel(syntheticTriples);
+		schema = Reasoning.schema("example/dasta.owl", "example/ibd.owl");
+		model = Reasoning.dataModel(data, schema, profile);
+		// backward chaining prepares its tables at the first query
+		model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public List<Resource> buildAndQueryPatients(){
+		return Reasoning.dataModel(data, schema, profile).listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList();
+	}
+
+	@Benchmark
+	public List<Resource> queryPatients(){
+		return model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList();
+	}
+}
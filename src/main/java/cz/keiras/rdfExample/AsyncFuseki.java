@@ -0,0 +1,362 @@
+package cz.keiras.rdfExample;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.system.Txn;
+import org.apache.jena.update.UpdateExecutionFactory;
+import org.apache.jena.update.UpdateRequest;
+
+
+/*
+ * Asynchronous select/construct/update against a SPARQL service (SparqlClient) or a local Dataset.
+ *
+ * Fuseki.fusekiSelect/fusekiConstruct/fusekiUpdate block the calling thread, a dashboard with dozens of
+ * independent per-patient queries runs them one after another. Here every call returns a CompletableFuture
+ * at once and the operation runs on a bounded pool:
+ * - concurrency per endpoint: queries run on queryConcurrency threads, updates on one thread
+ * - back-pressure: at most maxPending operations per endpoint are submitted and not finished, the caller
+ *   of select/construct/update blocks until one finishes (the future fails with RejectedExecutionException
+ *   when no slot is free within the timeout)
+ * - timeout: the future fails with TimeoutException when the operation is not finished in time (measured
+ *   from submission, waiting for the pool counts); a running query is aborted
+ * - cancel(): the operation is skipped when it has not started yet, a running query is aborted
+ *   (an update already sent to the server cannot be taken back)
+ * - ordering: an update starts after all operations submitted before it have finished, and operations
+ *   submitted after it start after it has finished - a select submitted after moveTherapyFromIbdToPatient
+ *   sees the moved therapies, one submitted before it does not; queries between two updates run in parallel
+ *
+ * Threads are daemon platform threads (Java 8 has no virtual threads), the pool size is the concurrency limit.
+ * The ordering is kept only among operations of one AsyncFuseki, use one instance per service.
+ *
+ * usage: AsyncFuseki [rounds] - per-patient dashboard queries against the embedded server, sequential
+ *        (Fuseki.fusekiSelect/fusekiConstruct) and asynchronous
+ * */
+
+
+public class AsyncFuseki implements Closeable {
+	public static final int DEFAULT_QUERY_CONCURRENCY = SparqlClient.DEFAULT_MAX_CONNECTIONS;
+	public static final int DEFAULT_MAX_PENDING = 256;
+	public static final long DEFAULT_TIMEOUT_MS = 60_000;
+
+	// exactly one of them is set
+	private final SparqlClient client;
+	private final Dataset dataset;
+
+	private final Endpoint queries;
+	private final Endpoint updates;
+	private final ScheduledExecutorService timer;
+	private final long timeoutMs;
+
+	// last submitted update and operations submitted after it, guarded by this
+	private CompletableFuture<?> lastUpdate = CompletableFuture.completedFuture(null);
+	private List<CompletableFuture<?>> sinceUpdate = new ArrayList<>();
+	private boolean closed = false;
+
+	public static void main(String[] arg){
+		int rounds = arg.length > 0 ? Integer.parseInt(arg[0]) : 20;
+		Dataset dataset = EmbeddedFuseki.exampleDataset();
+		FusekiServer server = EmbeddedFuseki.start(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME, dataset);
+		Fuseki.useRemote(EmbeddedFuseki.serviceUrl(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME));
+		try(AsyncFuseki async = Fuseki.async()){
+			List<String> patients = new ArrayList<>();
+			for(QuerySolution row : Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)))
+				patients.add(row.getResource("patient").getURI());
+
+			for(int round = 0; round < 3; round++){
+				long start = System.nanoTime();
+				int sequential = 0;
+				for(int i = 0; i < rounds; i++)
+					for(String patient : patients)
+						sequential += Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(patient)).size();
+				long sequentialNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				List<CompletableFuture<Model>> calls = new ArrayList<>();
+				for(int i = 0; i < rounds; i++)
+					for(String patient : patients)
+						calls.add(async.construct(Fuseki.getConstructQueryDepth2(patient)));
+				int concurrent = 0;
+				for(CompletableFuture<Model> call : calls)
+					concurrent += call.join().size();
+				long asyncNanos = System.nanoTime() - start;
+
+				System.out.format("round %d: %d depth-2 constructs, sequential %.1f ms (%d triples), async %.1f ms (%d triples)%n",
+						round, calls.size(), sequentialNanos / 1e6, sequential, asyncNanos / 1e6, concurrent);
+			}
+
+			// reads around an update: the first one sees therapies on IBD nodes, the second one on patients
+			CompletableFuture<List<QuerySolution>> before = async.select(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT));
+			CompletableFuture<Void> move = async.update(Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT));
+			CompletableFuture<List<QuerySolution>> after = async.select(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT));
+			move.join();
+			System.out.format("therapies on patients: %d before the update, %d after%n", before.join().size(), after.join().size());
+		} finally {
+			server.stop();
+		}
+	}
+
+	public AsyncFuseki(SparqlClient client){
+		this(client, null, DEFAULT_QUERY_CONCURRENCY, DEFAULT_MAX_PENDING, DEFAULT_TIMEOUT_MS);
+	}
+
+	/*
+	 * client				the client is not closed by close(), its pool should allow queryConcurrency + 1 connections
+	 * queryConcurrency		maximal number of queries running at once
+	 * maxPending			maximal number of submitted and not finished operations per endpoint
+	 * timeoutMs			default timeout of an operation
+	 */
+	public AsyncFuseki(SparqlClient client, int queryConcurrency, int maxPending, long timeoutMs){
+		this(client, null, queryConcurrency, maxPending, timeoutMs);
+	}
+
+	// operations executed in-process, queries in read and updates in write transactions
+	public AsyncFuseki(Dataset dataset, int queryConcurrency, int maxPending, long timeoutMs){
+		this(null, dataset, queryConcurrency, maxPending, timeoutMs);
+	}
+
+	private AsyncFuseki(SparqlClient client, Dataset dataset, int queryConcurrency, int maxPending, long timeoutMs){
+		this.client = client;
+		this.dataset = dataset;
+		this.queries = new Endpoint("fuseki-query", queryConcurrency, maxPending);
+		this.updates = new Endpoint("fuseki-update", 1, maxPending);
+		this.timeoutMs = timeoutMs;
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemon("fuseki-timeout"));
+	}
+
+	// ----- queries -----
+
+	// text is parsed now, a template miss as in Fuseki.fusekiSelect(String)
+	public CompletableFuture<List<QuerySolution>> select(String q){
+		return select(Fuseki.parse(q));
+	}
+
+	public CompletableFuture<List<QuerySolution>> select(Query q){
+		return select(q, timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	// rows are copied while the execution is open, as in Fuseki.fusekiSelect
+	// Metrics get the execution time, without the wait for a permit or for an update
+	public CompletableFuture<List<QuerySolution>> select(Query q, long timeout, TimeUnit unit){
+		return submit(queries, false, unit.toMillis(timeout), call -> Metrics.query(Metrics.Operation.SELECT, q,
+				() -> query(q, call, qe -> ResultSetFormatter.toList(qe.execSelect())), List::size));
+	}
+
+	public CompletableFuture<Model> construct(String q){
+		return construct(Fuseki.parse(q));
+	}
+
+	public CompletableFuture<Model> construct(Query q){
+		return construct(q, timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	public CompletableFuture<Model> construct(Query q, long timeout, TimeUnit unit){
+		return submit(queries, false, unit.toMillis(timeout), call -> Metrics.query(Metrics.Operation.CONSTRUCT, q,
+				() -> query(q, call, QueryExecution::execConstruct), Model::size));
+	}
+
+	private <T> T query(Query q, Call<?> call, Function<QueryExecution, T> action){
+		if(dataset != null)
+			return Txn.calculateRead(dataset, () -> {
+				try(QueryExecution qe = call.running(QueryExecutionFactory.create(q, dataset))){
+					return action.apply(qe);
+				}
+			});
+		try(QueryExecution qe = call.running(client.queryExecution(q))){
+			return action.apply(qe);
+		}
+	}
+
+	// ----- updates -----
+
+	public CompletableFuture<Void> update(String u){
+		return update(Fuseki.parseUpdate(u));
+	}
+
+	public CompletableFuture<Void> update(UpdateRequest request){
+		return update(request, timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	public CompletableFuture<Void> update(UpdateRequest request, long timeout, TimeUnit unit){
+		return submit(updates, true, unit.toMillis(timeout), call -> Metrics.query(Metrics.Operation.UPDATE, request, () -> {
+			if(dataset == null)
+				client.update(request);
+			else
+				try {
+					Txn.executeWrite(dataset, () -> UpdateExecutionFactory.create(request, dataset).execute());
+				} finally {
+					// the cache of Fuseki, when this is its local dataset (remote writes are reported by SparqlClient)
+					Fuseki.updatedLocal(dataset, request);
+				}
+			return null;
+		}, r -> request.getOperations().size()));
+	}
+
+	// ----- scheduling -----
+
+	private <T> CompletableFuture<T> submit(Endpoint endpoint, boolean update, long timeoutMs, Function<Call<T>, T> operation){
+		Call<T> call = new Call<>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		if(!endpoint.acquire(timeoutMs)){
+			call.completeExceptionally(new RejectedExecutionException(endpoint.name + ": " + endpoint.maxPending + " operations pending"));
+			return call;
+		}
+
+		// finishes when the operation has really ended (also after a timeout), later operations wait for it
+		CompletableFuture<Void> finished;
+		synchronized(this){
+			if(closed){
+				endpoint.permits.release();
+				call.completeExceptionally(new RejectedExecutionException("closed"));
+				return call;
+			}
+			CompletableFuture<?> after = update ? barrier() : lastUpdate;
+			finished = after.handleAsync((r, e) -> {
+				// skipped when cancelled or timed out while waiting
+				if(!call.isDone()){
+					try {
+						call.complete(operation.apply(call));
+					} catch (Throwable t) {
+						call.completeExceptionally(t);
+					}
+				}
+				return null;
+			}, endpoint.pool);
+			if(update){
+				lastUpdate = finished;
+				sinceUpdate = new ArrayList<>();
+			}
+			else {
+				if(sinceUpdate.size() >= 2 * endpoint.maxPending)
+					sinceUpdate.removeIf(CompletableFuture::isDone);
+				sinceUpdate.add(finished);
+			}
+		}
+		finished.whenComplete((r, e) -> {
+			endpoint.permits.release();
+			// the pool was shut down before the operation could start
+			if(e != null)
+				call.completeExceptionally(e);
+		});
+
+		long remaining = deadline - System.nanoTime();
+		ScheduledFuture<?> timeout = timer.schedule(() -> {
+			if(call.completeExceptionally(new TimeoutException(endpoint.name + ": no result in " + timeoutMs + " ms")))
+				call.abort();
+		}, Math.max(0, remaining), TimeUnit.NANOSECONDS);
+		call.whenComplete((r, e) -> timeout.cancel(false));
+		return call;
+	}
+
+	// completes when the last update and all operations submitted after it have finished
+	private CompletableFuture<?> barrier(){
+		CompletableFuture<?>[] all = sinceUpdate.toArray(new CompletableFuture<?>[sinceUpdate.size() + 1]);
+		all[all.length - 1] = lastUpdate;
+		return CompletableFuture.allOf(all);
+	}
+
+	// waits until submitted operations finish (each one at most its timeout), then stops the threads
+	@Override
+	public void close(){
+		CompletableFuture<?> all;
+		synchronized(this){
+			closed = true;
+			all = barrier();
+		}
+		try {
+			all.handle((r, e) -> null).join();
+		} finally {
+			queries.pool.shutdown();
+			updates.pool.shutdown();
+			timer.shutdownNow();
+		}
+	}
+
+	private static ThreadFactory daemon(String name){
+		AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+
+	// pool and pending limit of the query or update endpoint
+	private static class Endpoint {
+		final String name;
+		final ExecutorService pool;
+		final Semaphore permits;
+		final int maxPending;
+
+		Endpoint(String name, int threads, int maxPending){
+			this.name = name;
+			this.pool = Executors.newFixedThreadPool(threads, daemon(name));
+			this.permits = new Semaphore(maxPending);
+			this.maxPending = maxPending;
+		}
+
+		// blocks the caller while maxPending operations are pending (back-pressure)
+		boolean acquire(long timeoutMs){
+			try {
+				return permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+
+	// future of one operation, cancel() and the timeout abort the running query execution
+	static class Call<T> extends CompletableFuture<T> {
+		private volatile QueryExecution execution = null;
+
+		// registers the execution of the operation; when the call is already done, the execution is not started
+		// (abort() of an execution that has not started is not noticed by Jena)
+		QueryExecution running(QueryExecution qe){
+			execution = qe;
+			if(isDone()){
+				qe.close();
+				throw new CancellationException();
+			}
+			return qe;
+		}
+
+		void abort(){
+			QueryExecution qe = execution;
+			if(qe != null)
+				qe.abort();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning){
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if(cancelled)
+				abort();
+			return cancelled;
+		}
+	}
+}
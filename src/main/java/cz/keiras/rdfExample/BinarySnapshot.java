@@ -0,0 +1,298 @@
+package cz.keiras.rdfExample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.lang.StreamRDFCounting;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.thrift.BinRDF;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import cz.zcu.mre.vocab.DS;
+import cz.zcu.mre.vocab.DSCL;
+import cz.zcu.mre.vocab.MRE;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+
+/*
+ * Binary snapshots of graphs: RDF Thrift with optional block compression.
+ *
+ * Text formats are tokenized character by character and every IRI is parsed and checked again on load.
+ * RDF Thrift (libthrift is already on the classpath through jena-arq) writes the triple stream as tagged
+ * binary terms, the reader only decodes them. IRIs in the namespace of a prefix announced before the triples
+ * are written as (prefix, local name), so long common namespaces (mreid:, ds:) are not repeated in every term.
+ *
+ * file layout: MAGIC, FORMAT_VERSION, compression id, RDF Thrift stream compressed by
+ * - NONE	no compression, fastest to read from a fast disk
+ * - GZIP	java.util.zip, smallest files
+ * - LZ4	lz4-java block stream (64 kB blocks), a little larger than GZIP, much faster to (de)compress
+ *
+ * Snapshots are written and read through NIO channels (FileChannel for files), so they can be streamed
+ * from any ReadableByteChannel as well, e.g. a socket.
+ *
+ * usage: BinarySnapshot [synthetic triples] - size on disk, write and parse time of dataset.rdf (or synthetic data)
+ *        in the text formats and as snapshots
+ * */
+
+
+public class BinarySnapshot {
+	static final int MAGIC = 0x52444642;	// "RDFB"
+	// increase when the header or the payload changes
+	static final int FORMAT_VERSION = 1;
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int ROUNDS = 20;
+
+	public enum Compression {
+		NONE, GZIP, LZ4
+	}
+
+	public static void main(String[] in){
+		try {
+			Graph graph = GraphFactory.createDefaultGraph();
+			if(in.length > 0)
+				GraphUtil.addInto(graph, SyntheticPatientGenerator.generateModel(Long.parseLong(in[0]), 42).getGraph());
+			else
+				// N-Triples despite the extension
+				RDFParser.source("example/dataset.rdf").forceLang(Lang.NTRIPLES).parse(graph);
+			prefixes().forEach(graph.getPrefixMapping()::setNsPrefix);
+			Path dir = Paths.get("out/snapshot/");
+			Files.createDirectories(dir);
+			System.out.format("%d triples%n", graph.size());
+
+			Map<String, RDFFormat> text = new LinkedHashMap<>();
+			text.put("dataset.nt", RDFFormat.NTRIPLES_UTF8);
+			text.put("dataset.ttl", RDFFormat.TURTLE);
+			text.put("dataset.xml", RDFFormat.RDFXML_PLAIN);
+			text.put("dataset.jsonld", RDFFormat.JSONLD);
+			for(Map.Entry<String, RDFFormat> e : text.entrySet()){
+				Path file = dir.resolve(e.getKey());
+				long writeNanos = measure(() -> {
+					try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)){
+						RDFDataMgr.write(os, graph, e.getValue());
+					}
+				});
+				long readNanos = measure(() -> RDFParser.source(file).lang(e.getValue().getLang()).parse(GraphFactory.createDefaultGraph()));
+				report(file, e.getValue().toString(), writeNanos, readNanos);
+			}
+
+			for(Compression compression : Compression.values()){
+				Path file = dir.resolve("dataset.rdft" + extension(compression));
+				long writeNanos = measure(() -> write(graph, file, compression));
+				long readNanos = measure(() -> read(file));
+				report(file, "RDF Thrift " + compression, writeNanos, readNanos);
+			}
+
+			// without prefixes every IRI is written in full
+			Graph unprefixed = GraphFactory.createDefaultGraph();
+			graph.find().forEachRemaining(unprefixed::add);
+			Path file = dir.resolve("dataset.noprefix.rdft");
+			long writeNanos = measure(() -> write(unprefixed, file, Compression.NONE));
+			long readNanos = measure(() -> read(file));
+			report(file, "RDF Thrift NONE, no prefixes", writeNanos, readNanos);
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// prefixes of the example data, as in StreamingConverter.main
+	static Map<String, String> prefixes(){
+		Map<String, String> prefixes = new LinkedHashMap<>();
+		prefixes.put("ds", DS.NS);
+		prefixes.put("dscl", DSCL.NS);
+		prefixes.put("mre", MRE.NS);
+		prefixes.put("mreid", "http://mre.zcu.cz/id/");
+		return prefixes;
+	}
+
+	static String extension(Compression compression){
+		switch(compression){
+		case GZIP:
+			return ".gz";
+		case LZ4:
+			return ".lz4";
+		default:
+			return "";
+		}
+	}
+
+	// mean time of the action, after the same number of warm-up rounds
+	private static long measure(IOAction action) throws IOException{
+		for(int i = 0; i < ROUNDS; i++)
+			action.run();
+		long start = System.nanoTime();
+		for(int i = 0; i < ROUNDS; i++)
+			action.run();
+		return (System.nanoTime() - start) / ROUNDS;
+	}
+
+	private static void report(Path file, String format, long writeNanos, long readNanos) throws IOException{
+		System.out.format("%-34s %-30s %10.1f kB  write %8.2f ms  parse %8.2f ms%n",
+				file, format, Files.size(file) / 1024.0, writeNanos / 1e6, readNanos / 1e6);
+	}
+
+	// ----- write -----
+
+	public static void write(Model model, Path file, Compression compression) throws IOException{
+		write(model.getGraph(), file, compression);
+	}
+
+	// prefixes of the graph's prefix mapping are written first and used for IRI compression
+	public static void write(Graph graph, Path file, Compression compression) throws IOException{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			write(graph, channel, compression);
+		}
+	}
+
+	// the channel is not closed
+	public static void write(Graph graph, WritableByteChannel channel, Compression compression) throws IOException{
+		long start = System.nanoTime();
+		long triples = 0;
+		OutputStream os = open(channel, compression);
+		StreamRDF stream = BinRDF.streamToOutputStream(os, false);
+		stream.start();
+		graph.getPrefixMapping().getNsPrefixMap().forEach(stream::prefix);
+		ExtendedIterator<Triple> it = graph.find();
+		try {
+			while(it.hasNext()){
+				stream.triple(it.next());
+				triples++;
+			}
+		} finally {
+			it.close();
+		}
+		stream.finish();
+		// finishes the compressed stream, the channel stays open
+		os.close();
+		Metrics.record(Metrics.Operation.SERIALIZE, "RDF Thrift " + compression, System.nanoTime() - start, triples);
+	}
+
+	/*
+	 * Snapshot of an RDF file without loading it into memory, the file is parsed as a stream.
+	 * Prefixes (may be empty) are announced before the triples, prefixes of the source are used as well.
+	 */
+	public static void convert(Path source, Lang lang, Path file, Compression compression, Map<String, String> prefixes) throws IOException{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			OutputStream os = open(channel, compression);
+			StreamRDF stream = BinRDF.streamToOutputStream(os, false);
+			stream.start();
+			prefixes.forEach(stream::prefix);
+			try(InputStream is = Files.newInputStream(source)){
+				RDFDataMgr.parse(new StreamingConverter.StreamRDFCloseShield(stream), is, lang);
+			}
+			stream.finish();
+			os.close();
+		}
+	}
+
+	// header + compressing stream over the channel; closing the stream does not close the channel
+	private static OutputStream open(WritableByteChannel channel, Compression compression) throws IOException{
+		DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new UncloseableOutputStream(Channels.newOutputStream(channel)), BUFFER_SIZE));
+		header.writeInt(MAGIC);
+		header.writeInt(FORMAT_VERSION);
+		header.writeByte(compression.ordinal());
+		switch(compression){
+		case GZIP:
+			return new GZIPOutputStream(header, BUFFER_SIZE);
+		case LZ4:
+			return new LZ4BlockOutputStream(header, BUFFER_SIZE);
+		default:
+			return header;
+		}
+	}
+
+	// ----- read -----
+
+	public static Graph read(Path file) throws IOException{
+		Graph graph = GraphFactory.createDefaultGraph();
+		read(file, StreamRDFLib.graph(graph));
+		return graph;
+	}
+
+	public static void read(Path file, StreamRDF destination) throws IOException{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			read(channel, destination);
+		}
+	}
+
+	// prefixes and triples of the snapshot are sent to destination; the channel is not closed
+	public static void read(ReadableByteChannel channel, StreamRDF destination) throws IOException{
+		long start = System.nanoTime();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+		if(in.readInt() != MAGIC)
+			throw new IOException("not a binary RDF snapshot");
+		int version = in.readInt();
+		if(version != FORMAT_VERSION)
+			throw new IOException("unsupported snapshot version " + version);
+		int compression = in.readUnsignedByte();
+		if(compression >= Compression.values().length)
+			throw new IOException("unknown snapshot compression " + compression);
+
+		InputStream payload;
+		switch(Compression.values()[compression]){
+		case GZIP:
+			payload = new GZIPInputStream(in, BUFFER_SIZE);
+			break;
+		case LZ4:
+			payload = new LZ4BlockInputStream(in);
+			break;
+		default:
+			payload = in;
+		}
+		// calls start() and finish() of destination
+		StreamRDFCounting counting = StreamRDFLib.count(destination);
+		BinRDF.inputStreamToStream(payload, counting);
+		Metrics.record(Metrics.Operation.PARSE, "RDF Thrift " + Compression.values()[compression], System.nanoTime() - start, counting.count());
+	}
+
+
+	interface IOAction {
+		void run() throws IOException;
+	}
+
+
+	// lets the compressing stream be finished without closing the underlying channel
+	private static class UncloseableOutputStream extends FilterOutputStream {
+		UncloseableOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException{
+			flush();
+		}
+	}
+}
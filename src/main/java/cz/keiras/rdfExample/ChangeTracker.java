@@ -0,0 +1,504 @@
+package cz.keiras.rdfExample;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.GraphListener;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.tokens.Tokenizer;
+import org.apache.jena.riot.tokens.TokenizerFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.modify.request.QuadDataAcc;
+import org.apache.jena.sparql.modify.request.Target;
+import org.apache.jena.sparql.modify.request.UpdateClear;
+import org.apache.jena.sparql.modify.request.UpdateDataDelete;
+import org.apache.jena.sparql.modify.request.UpdateDataInsert;
+import org.apache.jena.system.Txn;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+import org.apache.jena.vocabulary.DC;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import cz.zcu.mre.vocab.DS;
+
+
+/*
+ * Change tracking of a local graph and delta sync to a SPARQL endpoint.
+ *
+ * The tracker is a GraphListener of the graph (Model.getGraph()). Every added/removed triple goes into a map
+ * of net changes: the last change of a triple wins (add + remove -> remove, remove + add -> add), so the
+ * tracked state costs O(changed triples), independent of the graph size.
+ * - commit() turns the net changes into a patch and appends it to the patch log (RDF Patch rows):
+ *     H id <uuid:...> .   H prev <uuid:...> .   TX .   D <s> <p> <o> .   A <s> <p> <o> .   TC .
+ *   plus row "C ." when the graph was cleared (GraphMem.clear() empties the store with a single removeAll
+ *   event, the removed triples are not known)
+ * - sync(batcher) commits and ships the patches not sent yet as DELETE DATA / INSERT DATA (CLEAR DEFAULT)
+ *   operations of at most batchTriples triples, joined into requests of at most maxOps operations of the batcher
+ *   (one server transaction each) and sent by UpdateBatcher.send with its retries. A patch leaves the queue
+ *   only when all its requests were applied; otherwise sync throws and the patch is sent again by the next
+ *   sync, which is harmless (DATA operations have set semantics).
+ * - replay(log, graph) applies the committed transactions of a log to a graph, e.g. the last snapshot
+ * - an existing log is appended to, "H prev" of the first new patch is the last committed "H id" of the log
+ *
+ * Blank nodes: SPARQL does not allow them in DELETE DATA, and in INSERT DATA they are new nodes in every request.
+ * Both inserts and deletes ship them as skolem IRIs (UpdateBatcher.skolemize), so a blank node inserted by one
+ * sync can be deleted by a later one. The log keeps the blank nodes (labels are encoded by NodeFmtLib and decoded
+ * by replay).
+ * Restriction: the sync is exact only for blank nodes the server holds as these skolem IRIs. A blank node which
+ * reached the server in another way (a file or a model loaded without skolemization, or by another tracker) does
+ * not match, DELETE DATA of its triples changes nothing. Such deletes are shipped, but counted in
+ * SyncStats.unmatched (blank nodes not inserted through this tracker); the server drifts from the local
+ * graph when it is not 0.
+ *
+ * usage: ChangeTracker [synthetic triples] - edits a local copy of the data served by the embedded Fuseki,
+ *        syncs the delta, compares it with re-uploading the whole graph and rebuilds the state from the log
+ * */
+
+
+public class ChangeTracker implements GraphListener, Closeable {
+	public static final int DEFAULT_BATCH_TRIPLES = 1000;
+
+	private final Graph graph;
+	private final int batchTriples;
+	private final BufferedWriter log;		// null = patches are not logged
+	// net changes since the last commit: triple -> true added, false removed
+	private Map<Triple, Boolean> pending = new LinkedHashMap<>();
+	private boolean cleared = false;
+	// committed, not shipped yet
+	private final List<Patch> unsent = new ArrayList<>();
+	private UUID previous;
+	// blank nodes inserted on the server by this tracker (as skolem IRIs), guarded by syncLock
+	private final Set<Node> shipped = new HashSet<>();
+	// one sync at a time, graph changes are recorded meanwhile
+	private final Object syncLock = new Object();
+
+	public static void main(String[] arg){
+		long syntheticTriples = arg.length > 0 ? Long.parseLong(arg[0]) : 0;
+		Dataset served = EmbeddedFuseki.exampleDataset();
+		if(syntheticTriples > 0)
+			Txn.executeWrite(served, () -> served.getDefaultModel().add(SyntheticPatientGenerator.generateModel(syntheticTriples, 42)));
+		// the local model and the server start with the same data
+		Model local = ModelFactory.createDefaultModel();
+		Txn.executeRead(served, () -> local.add(served.getDefaultModel()));
+		Graph base = GraphFactory.createDefaultGraph();
+		local.getGraph().find().forEachRemaining(base::add);
+
+		FusekiServer server = EmbeddedFuseki.start(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME, served);
+		Path logFile = Paths.get("out/changes.rdfp");
+		try(SparqlClient client = new SparqlClient(EmbeddedFuseki.serviceUrl(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME))){
+			Files.createDirectories(logFile.getParent());
+			Files.deleteIfExists(logFile);
+			try(ChangeTracker tracker = new ChangeTracker(local.getGraph(), logFile); UpdateBatcher batcher = new UpdateBatcher(client)){
+				// a small edit of one patient
+				Resource patient = local.listSubjectsWithProperty(RDF.type, DS.PATIENT_CLASS).next();
+				local.add(patient, DC.description, "edited locally");
+				Statement birth = patient.getProperty(DS.DATETIME_BIRTH);
+				if(birth != null)
+					birth.changeObject("1970-01-01T00:00:00");
+				// added and removed again: only the removal is shipped
+				local.add(patient, RDFS.comment, "temporary");
+				local.remove(patient, RDFS.comment, local.createLiteral("temporary"));
+				// a blank node, inserted by this sync and partly deleted by the next one
+				Resource note = local.createResource();
+				local.add(patient, RDFS.seeAlso, note);
+				local.add(note, RDFS.label, "note");
+				local.add(note, RDFS.comment, "draft");
+				System.out.format("%d triples, %d pending changes%n", local.size(), tracker.pendingChanges());
+				System.out.println(tracker.sync(batcher));
+
+				local.remove(note, RDFS.comment, local.createLiteral("draft"));
+				System.out.println(tracker.sync(batcher));
+				Model remote = client.construct("CONSTRUCT WHERE { ?s ?p ?o }");
+				System.out.format("server equals local model (blank nodes skolemized): %b%n", sameTriples(remote.getGraph(), skolemized(local.getGraph())));
+			}
+
+			long start = System.nanoTime();
+			client.update(UpdateFactory.create("CLEAR DEFAULT"));
+			client.load(null, local);
+			System.out.format("re-upload of the whole model: %d triples in %.1f ms%n", local.size(), (System.nanoTime() - start) / 1e6);
+
+			int transactions = replay(logFile, base);
+			// the same blank nodes, not only an isomorphic graph
+			System.out.format("replayed %d transaction(s) of %s (%d bytes) on the original data, equals local model: %b%n",
+					transactions, logFile, Files.size(logFile), sameTriples(base, local.getGraph()));
+		} catch (IOException e) {
+			System.err.println(e);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static boolean sameTriples(Graph a, Graph b){
+		return a.size() == b.size() && !a.find().filterDrop(b::contains).hasNext();
+	}
+
+	// copy of the graph with blank nodes as the server gets them from sync
+	private static Graph skolemized(Graph graph){
+		Graph copy = GraphFactory.createDefaultGraph();
+		graph.find().forEachRemaining(t -> copy.add(UpdateBatcher.skolemize(t)));
+		return copy;
+	}
+
+	public ChangeTracker(Graph graph, Path logFile) throws IOException{
+		this(graph, logFile, DEFAULT_BATCH_TRIPLES);
+	}
+
+	// logFile == null -> patches are only shipped, not logged; an existing log is appended to, continuing its chain of ids
+	public ChangeTracker(Graph graph, Path logFile, int batchTriples) throws IOException{
+		this.graph = graph;
+		this.batchTriples = batchTriples;
+		this.previous = logFile == null ? null : lastId(logFile);
+		this.log = logFile == null ? null : Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		graph.getEventManager().register(this);
+	}
+
+	// ----- recording -----
+
+	private synchronized void changed(Triple triple, boolean added){
+		pending.put(triple, added);
+	}
+
+	private void changed(Iterator<Triple> triples, boolean added){
+		while(triples.hasNext())
+			changed(triples.next(), added);
+	}
+
+	@Override public void notifyAddTriple(Graph g, Triple t){ changed(t, true); }
+	@Override public void notifyAddList(Graph g, List<Triple> triples){ changed(triples.iterator(), true); }
+	@Override public void notifyAddIterator(Graph g, Iterator<Triple> it){ changed(it, true); }
+	@Override public void notifyAddGraph(Graph g, Graph added){ changed(added.find(), true); }
+	@Override public void notifyDeleteTriple(Graph g, Triple t){ changed(t, false); }
+	@Override public void notifyDeleteList(Graph g, List<Triple> triples){ changed(triples.iterator(), false); }
+	@Override public void notifyDeleteIterator(Graph g, Iterator<Triple> it){ changed(it, false); }
+	@Override public void notifyDeleteGraph(Graph g, Graph removed){ changed(removed.find(), false); }
+
+	@Override
+	public void notifyAddArray(Graph g, Triple[] triples){
+		for(Triple t : triples)
+			changed(t, true);
+	}
+
+	@Override
+	public void notifyDeleteArray(Graph g, Triple[] triples){
+		for(Triple t : triples)
+			changed(t, false);
+	}
+
+	// Graph.remove(s, p, o) deletes triple by triple (notified above), clear() of GraphMem does not
+	@Override
+	public void notifyEvent(Graph source, Object value){
+		if(value == GraphEvents.removeAll){
+			synchronized(this){
+				pending.clear();
+				cleared = true;
+			}
+		}
+	}
+
+	public synchronized int pendingChanges(){
+		return pending.size() + (cleared ? 1 : 0);
+	}
+
+	// ----- patches -----
+
+	// net changes since the last commit as a patch appended to the log; null when nothing changed
+	public synchronized Patch commit() throws IOException{
+		if(pending.isEmpty() && !cleared)
+			return null;
+		Patch patch = new Patch(UUID.randomUUID(), previous, cleared);
+		pending.forEach((triple, added) -> (added ? patch.added : patch.deleted).add(triple));
+		pending = new LinkedHashMap<>();
+		cleared = false;
+
+		if(log != null){
+			patch.write(log);
+			log.flush();
+		}
+		previous = patch.id;
+		unsent.add(patch);
+		return patch;
+	}
+
+	/*
+	 * Commits and ships all patches not sent yet, in order; returns when the server has applied them.
+	 * A failure is thrown after the patches applied before it were removed from the queue.
+	 */
+	public SyncStats sync(UpdateBatcher batcher) throws IOException{
+		synchronized(syncLock){
+			long start = System.nanoTime();
+			commit();
+			List<Patch> patches;
+			synchronized(this){
+				patches = new ArrayList<>(unsent);
+			}
+
+			SyncStats stats = new SyncStats();
+			for(Patch patch : patches){
+				// not the queue of the batcher: a failed timer flush would be reported to a later caller
+				for(UpdateRequest request : patch.requests(batchTriples, batcher.getMaxOps(), shipped, stats)){
+					batcher.send(request);
+					stats.requests++;
+				}
+				for(Triple t : patch.added){
+					if(t.getSubject().isBlank())
+						shipped.add(t.getSubject());
+					if(t.getObject().isBlank())
+						shipped.add(t.getObject());
+				}
+				synchronized(this){
+					unsent.remove(0);
+				}
+				stats.patches++;
+			}
+			stats.nanos = System.nanoTime() - start;
+			Metrics.record(Metrics.Operation.UPDATE, "changeTracker", stats.nanos, stats.added + stats.deleted);
+			return stats;
+		}
+	}
+
+	// commits the last changes into the log (they are not shipped) and stops tracking
+	@Override
+	public void close() throws IOException{
+		graph.getEventManager().unregister(this);
+		try {
+			commit();
+		} finally {
+			if(log != null)
+				log.close();
+		}
+	}
+
+	// ----- replay -----
+
+	// id of the last committed transaction of the log, null for a missing or empty log
+	static UUID lastId(Path logFile) throws IOException{
+		if(!Files.exists(logFile))
+			return null;
+		UUID last = null;
+		UUID header = null;
+		try(BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)){
+			String line;
+			while((line = reader.readLine()) != null){
+				Tokenizer tokens = TokenizerFactory.makeTokenizerString(line);
+				if(!tokens.hasNext())
+					continue;
+				String code = tokens.next().getImage();
+				if(code.equals("H") && tokens.hasNext() && tokens.next().getImage().equals("id"))
+					header = uuid(node(tokens, line), line);
+				else if(code.equals("TC"))
+					last = header;
+			}
+		}
+		return last;
+	}
+
+	private static UUID uuid(Node node, String line) throws IOException{
+		if(!node.isURI() || !node.getURI().startsWith("uuid:"))
+			throw new IOException("invalid patch id: " + line);
+		try {
+			return UUID.fromString(node.getURI().substring("uuid:".length()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid patch id: " + line, e);
+		}
+	}
+
+	/*
+	 * Applies the transactions of the log to the graph in order; returns their number.
+	 * An aborted transaction (TA) and an unfinished one at the end of the log (TX without TC) are skipped.
+	 */
+	public static int replay(Path logFile, Graph graph) throws IOException{
+		int transactions = 0;
+		Patch transaction = null;
+		// order of rows within a transaction, true = add
+		List<Boolean> order = new ArrayList<>();
+		try(BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)){
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.trim().isEmpty())
+					continue;
+				Tokenizer tokens = TokenizerFactory.makeTokenizerString(line);
+				String code = tokens.next().getImage();
+				switch(code){
+				case "H":
+					break;
+				case "TX":
+					transaction = new Patch(null, null, false);
+					order.clear();
+					break;
+				case "C":
+					requireTransaction(transaction, line).clear = true;
+					break;
+				case "A":
+				case "D":
+					Triple triple = Triple.create(node(tokens, line), node(tokens, line), node(tokens, line));
+					(code.equals("A") ? requireTransaction(transaction, line).added : requireTransaction(transaction, line).deleted).add(triple);
+					order.add(code.equals("A"));
+					break;
+				case "TC":
+					requireTransaction(transaction, line).apply(graph, order);
+					transaction = null;
+					transactions++;
+					break;
+				case "TA":
+					transaction = null;
+					break;
+				default:
+					throw new IOException("unknown patch row: " + line);
+				}
+			}
+		}
+		return transactions;
+	}
+
+	private static Patch requireTransaction(Patch transaction, String line) throws IOException{
+		if(transaction == null)
+			throw new IOException("patch row outside of a transaction: " + line);
+		return transaction;
+	}
+
+	// N-Triples term of a row; blank node labels were encoded by NodeFmtLib.str (see Patch.write)
+	private static Node node(Tokenizer tokens, String line) throws IOException{
+		if(!tokens.hasNext())
+			throw new IOException("incomplete patch row: " + line);
+		Node node = tokens.next().asNode();
+		if(node == null)
+			throw new IOException("invalid term in patch row: " + line);
+		return node.isBlank() ? NodeFactory.createBlankNode(NodeFmtLib.decodeBNodeLabel(node.getBlankNodeLabel())) : node;
+	}
+
+
+	// net changes of one commit
+	public static class Patch {
+		public final UUID id;
+		public final UUID previous;
+		boolean clear;
+		public final List<Triple> deleted = new ArrayList<>();
+		public final List<Triple> added = new ArrayList<>();
+
+		Patch(UUID id, UUID previous, boolean clear){
+			this.id = id;
+			this.previous = previous;
+			this.clear = clear;
+		}
+
+		// clear first, then deletes and adds (each triple is in one of them only)
+		void write(BufferedWriter out) throws IOException{
+			out.write("H id <uuid:" + id + "> .\n");
+			if(previous != null)
+				out.write("H prev <uuid:" + previous + "> .\n");
+			out.write("TX .\n");
+			if(clear)
+				out.write("C .\n");
+			for(Triple t : deleted)
+				out.write("D " + NodeFmtLib.str(t) + " .\n");
+			for(Triple t : added)
+				out.write("A " + NodeFmtLib.str(t) + " .\n");
+			out.write("TC .\n");
+		}
+
+		// rows of a replayed transaction are applied in the order of the log
+		void apply(Graph graph, List<Boolean> order){
+			if(clear)
+				graph.clear();
+			Iterator<Triple> adds = added.iterator();
+			Iterator<Triple> deletes = deleted.iterator();
+			for(boolean add : order){
+				if(add)
+					graph.add(adds.next());
+				else
+					graph.delete(deletes.next());
+			}
+		}
+
+		/*
+		 * CLEAR DEFAULT, DELETE DATA and INSERT DATA of at most batchTriples triples each, in requests of at most
+		 * maxOps operations; blank nodes are skolemized, deletes of blank nodes not in shipped are counted as unmatched
+		 */
+		List<UpdateRequest> requests(int batchTriples, int maxOps, Set<Node> shipped, SyncStats stats){
+			List<Update> operations = new ArrayList<>();
+			if(clear)
+				operations.add(new UpdateClear(Target.DEFAULT));
+
+			QuadDataAcc data = new QuadDataAcc();
+			for(Triple t : deleted){
+				if((t.getSubject().isBlank() && !shipped.contains(t.getSubject()))
+						|| (t.getObject().isBlank() && !shipped.contains(t.getObject())))
+					stats.unmatched++;
+				data.addTriple(UpdateBatcher.skolemize(t));
+				stats.deleted++;
+				if(data.getQuads().size() == batchTriples){
+					operations.add(new UpdateDataDelete(data));
+					data = new QuadDataAcc();
+				}
+			}
+			if(!data.getQuads().isEmpty())
+				operations.add(new UpdateDataDelete(data));
+
+			data = new QuadDataAcc();
+			for(Triple t : added){
+				data.addTriple(UpdateBatcher.skolemize(t));
+				stats.added++;
+				if(data.getQuads().size() == batchTriples){
+					operations.add(new UpdateDataInsert(data));
+					data = new QuadDataAcc();
+				}
+			}
+			if(!data.getQuads().isEmpty())
+				operations.add(new UpdateDataInsert(data));
+
+			List<UpdateRequest> requests = new ArrayList<>();
+			for(int i = 0; i < operations.size(); i += maxOps){
+				UpdateRequest request = new UpdateRequest();
+				operations.subList(i, Math.min(i + maxOps, operations.size())).forEach(request::add);
+				requests.add(request);
+			}
+			return requests;
+		}
+	}
+
+
+	public static class SyncStats {
+		public int patches;
+		public long added;
+		public long deleted;
+		// deletes of blank nodes which were not inserted through this tracker, the server may keep them
+		public long unmatched;
+		public int requests;
+		public long nanos;
+
+		@Override
+		public String toString(){
+			return String.format("delta sync: %d patch(es), %d added, %d deleted (%d unmatched), %d request(s) in %.1f ms",
+					patches, added, deleted, unmatched, requests, nanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,512 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Capabilities;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.NullIterator;
+
+
+/*
+ * Read-only in-memory graph with dictionary-encoded terms and sorted int indexes.
+ *
+ * GraphMem keeps Triple objects in three hash maps of buckets (~150-200 B per triple plus the nodes). Here:
+ * - every distinct term (IRI, literal, blank node) is stored once in a dictionary and gets an int id
+ *   (open addressing hash table of ids, no Map.Entry objects)
+ * - triples are three int columns sorted by S,P,O; POS and OSP orders are int permutations of them
+ *   -> 20 B per triple + the dictionary
+ * - find() binary searches the longest bound prefix in the index with the matching order
+ *   (S.. / SP. / SPO -> SPO, .P. / .PO -> POS, ..O / S.O -> OSP), the result is a contiguous range of the index
+ *
+ * The graph is immutable after build(): no locks, any number of threads can read it concurrently.
+ * Terms are matched by term equality (as in SPARQL/TDB), not by value: "1"^^xsd:int does not match "01"^^xsd:int.
+ * Adding or removing triples throws AddDeniedException/DeleteDeniedException (GraphBase defaults).
+ *
+ * usage: CompactGraph [synthetic triples] - heap and scan times compared to GraphMem
+ * */
+
+
+public class CompactGraph extends GraphBase {
+	// ----- dictionary -----
+	private final Node[] nodes;
+	private final int[] hashTable;		// id + 1, 0 = empty slot; size is a power of two
+
+	// ----- triples, sorted by S, P, O -----
+	private final int[] subjects;
+	private final int[] predicates;
+	private final int[] objects;
+	// positions in the columns above, sorted by P, O, S and by O, S, P
+	private final int[] pos;
+	private final int[] osp;
+
+	private CompactGraph(Node[] nodes, int[] hashTable, int[] subjects, int[] predicates, int[] objects, int[] pos, int[] osp){
+		this.nodes = nodes;
+		this.hashTable = hashTable;
+		this.subjects = subjects;
+		this.predicates = predicates;
+		this.objects = objects;
+		this.pos = pos;
+		this.osp = osp;
+		// GraphBase creates these lazily, create them before the graph is shared between threads
+		getPrefixMapping();
+		getEventManager();
+		getCapabilities();
+	}
+
+	public static void main(String[] in){
+		long syntheticTriples = in.length > 0 ? Long.parseLong(in[0]) : 1_000_000;
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		gc();
+		long heap = memory.getHeapMemoryUsage().getUsed();
+		long start = System.nanoTime();
+		Graph mem = GraphFactory.createDefaultGraph();
+		SyntheticPatientGenerator.generate(syntheticTriples, 42, StreamRDFLib.graph(mem));
+		long memNanos = System.nanoTime() - start;
+		gc();
+		long memHeap = memory.getHeapMemoryUsage().getUsed() - heap;
+
+		heap = memory.getHeapMemoryUsage().getUsed();
+		start = System.nanoTime();
+		Builder builder = new Builder();
+		SyntheticPatientGenerator.generate(syntheticTriples, 42, builder);
+		CompactGraph compact = builder.build();
+		long compactNanos = System.nanoTime() - start;
+		gc();
+		long compactHeap = memory.getHeapMemoryUsage().getUsed() - heap;
+
+		System.out.format("%d triples, %d terms%n", compact.size(), compact.terms());
+		System.out.format("GraphMem      load %6.0f ms, heap %6.1f MB (%.0f B/triple)%n", memNanos / 1e6, memHeap / 1e6, (double) memHeap / mem.size());
+		System.out.format("CompactGraph  load %6.0f ms, heap %6.1f MB (%.0f B/triple)%n", compactNanos / 1e6, compactHeap / 1e6, (double) compactHeap / compact.size());
+
+		for(int round = 0; round < 3; round++){
+			System.out.format("round %d%n", round);
+			scan("GraphMem", mem);
+			scan("CompactGraph", compact);
+		}
+	}
+
+	// the same patterns as RdfExplore analyses
+	private static void scan(String label, Graph graph){
+		Model model = ModelFactory.createModelForGraph(graph);
+		long start = System.nanoTime();
+		int types = RdfExplore.findAllNodeTypesInModel2(model).size();
+		long typesNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int patients = model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList().size();
+		long patientsNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long all = 0;
+		for(ExtendedIterator<Triple> it = graph.find(); it.hasNext(); it.next())
+			all++;
+		long allNanos = System.nanoTime() - start;
+
+		System.out.format("  %-12s types %3d in %6.1f ms, patients %6d in %6.1f ms, all %8d in %6.1f ms%n",
+				label, types, typesNanos / 1e6, patients, patientsNanos / 1e6, all, allNanos / 1e6);
+	}
+
+	private static void gc(){
+		System.gc();
+		System.gc();
+	}
+
+	public static CompactGraph copyOf(Graph graph){
+		Builder builder = new Builder();
+		ExtendedIterator<Triple> it = graph.find();
+		try {
+			while(it.hasNext())
+				builder.triple(it.next());
+		} finally {
+			it.close();
+		}
+		return builder.build();
+	}
+
+	// parses the file straight into the compact form, no intermediate GraphMem
+	public static CompactGraph load(Path file, Lang lang) throws IOException{
+		Builder builder = new Builder();
+		try(InputStream is = Files.newInputStream(file)){
+			RDFParser.source(is).forceLang(lang).parse(builder);
+		}
+		return builder.build();
+	}
+
+	// number of distinct terms
+	public int terms(){
+		return nodes.length;
+	}
+
+	// ----- partitioned access by term ids, see TypeProfiler -----
+
+	// POS positions [from, to) of the triples of the predicate: one range sorted by object and subject,
+	// any sub-range can be read independently
+	int[] predicateRange(Node predicate){
+		int pid = predicate == null || !predicate.isConcrete() ? MISSING : id(predicate);
+		if(pid < 0)
+			return new int[]{0, 0};
+		return new int[]{
+				lowerBound(pos, predicates, objects, subjects, pid, Integer.MIN_VALUE, Integer.MIN_VALUE),
+				lowerBound(pos, predicates, objects, subjects, pid + 1, Integer.MIN_VALUE, Integer.MIN_VALUE)};
+	}
+
+	int subjectAt(int position){
+		return subjects[pos[position]];
+	}
+
+	int objectAt(int position){
+		return objects[pos[position]];
+	}
+
+	Node node(int id){
+		return nodes[id];
+	}
+
+	// id of a concrete term, negative when the graph does not contain it
+	int termId(Node node){
+		return node == null || !node.isConcrete() ? MISSING : id(node);
+	}
+
+	// approximate retained heap: columns, hash table, dictionary and the terms
+	public long estimatedBytes(){
+		long bytes = 4L * (hashTable.length + 5L * subjects.length) + 8L * nodes.length;
+		for(Node node : nodes)
+			bytes += nodeBytes(node);
+		return bytes;
+	}
+
+	// approximate heap of a term, the characters of IRIs and lexical forms dominate
+	static long nodeBytes(Node node){
+		if(node.isURI())
+			return 64 + 2L * node.getURI().length();
+		if(node.isLiteral())
+			return 96 + 2L * (node.getLiteralLexicalForm().length() + node.getLiteralLanguage().length());
+		return 48;
+	}
+
+	// ----- Graph -----
+
+	@Override
+	protected int graphBaseSize(){
+		return subjects.length;
+	}
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(Triple triple){
+		return graphBaseFind(triple.getSubject(), triple.getPredicate(), triple.getObject());
+	}
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(Node s, Node p, Node o){
+		int sid = id(s), pid = id(p), oid = id(o);
+		// concrete term which is not in the dictionary -> nothing matches
+		if(sid == MISSING || pid == MISSING || oid == MISSING)
+			return NullIterator.instance();
+
+		if(sid >= 0){
+			if(pid < 0 && oid >= 0)
+				return range(osp, objects, subjects, predicates, oid, sid, ANY);
+			return range(null, subjects, predicates, objects, sid, pid, oid);
+		}
+		if(pid >= 0)
+			return range(pos, predicates, objects, subjects, pid, oid, ANY);
+		if(oid >= 0)
+			return range(osp, objects, subjects, predicates, oid, ANY, ANY);
+		return range(null, subjects, predicates, objects, ANY, ANY, ANY);
+	}
+
+	@Override
+	protected boolean graphBaseContains(Triple t){
+		if(!t.isConcrete())
+			return super.graphBaseContains(t);
+		int sid = id(t.getSubject()), pid = id(t.getPredicate()), oid = id(t.getObject());
+		if(sid < 0 || pid < 0 || oid < 0)
+			return false;
+		int from = lowerBound(null, subjects, predicates, objects, sid, pid, oid);
+		return from < subjects.length && subjects[from] == sid && predicates[from] == pid && objects[from] == oid;
+	}
+
+	@Override
+	public Capabilities getCapabilities(){
+		if(capabilities == null)
+			capabilities = new ReadOnlyCapabilities();
+		return capabilities;
+	}
+
+	// ----- lookups -----
+
+	static final int ANY = -1;
+	static final int MISSING = -2;
+
+	// id of a concrete node, ANY for a wildcard (null, Node.ANY, variable), MISSING when the node is not in the graph
+	private int id(Node node){
+		if(node == null || !node.isConcrete())
+			return ANY;
+		int mask = hashTable.length - 1;
+		for(int slot = mix(node.hashCode()) & mask; ; slot = (slot + 1) & mask){
+			int id = hashTable[slot] - 1;
+			if(id < 0)
+				return MISSING;
+			if(nodes[id].equals(node))
+				return id;
+		}
+	}
+
+	/*
+	 * Triples of the index whose first columns equal the bound keys (a, b, c; ANY ends the prefix).
+	 * index == null means the SPO order itself; first/second/third are columns in the order of the index.
+	 */
+	private ExtendedIterator<Triple> range(int[] index, int[] first, int[] second, int[] third, int a, int b, int c){
+		int from, to;
+		if(a == ANY){
+			from = 0;
+			to = first.length;
+		} else {
+			int bb = b == ANY ? Integer.MIN_VALUE : b;
+			int cc = b == ANY || c == ANY ? Integer.MIN_VALUE : c;
+			from = lowerBound(index, first, second, third, a, bb, cc);
+			// upper bound = lower bound of the next prefix
+			if(b == ANY)
+				to = lowerBound(index, first, second, third, a + 1, Integer.MIN_VALUE, Integer.MIN_VALUE);
+			else if(c == ANY)
+				to = lowerBound(index, first, second, third, a, b + 1, Integer.MIN_VALUE);
+			else
+				to = lowerBound(index, first, second, third, a, b, c + 1);
+		}
+		return from >= to ? NullIterator.instance() : new RangeIterator(index, from, to);
+	}
+
+	// first position of the index with (first, second, third) >= (a, b, c)
+	private static int lowerBound(int[] index, int[] first, int[] second, int[] third, int a, int b, int c){
+		int lo = 0, hi = first.length;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int t = index == null ? mid : index[mid];
+			if(compare(first[t], second[t], third[t], a, b, c) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static int compare(int a1, int b1, int c1, int a2, int b2, int c2){
+		if(a1 != a2)
+			return Integer.compare(a1, a2);
+		if(b1 != b2)
+			return Integer.compare(b1, b2);
+		return Integer.compare(c1, c2);
+	}
+
+	// spreads Node.hashCode() (String hashes of similar IRIs differ mostly in low bits)
+	private static int mix(int h){
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+
+	// triples of index positions [from, to), Triple objects are created on demand
+	private class RangeIterator extends NiceIterator<Triple> {
+		private final int[] index;
+		private int next;
+		private final int to;
+
+		RangeIterator(int[] index, int from, int to){
+			this.index = index;
+			this.next = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean hasNext(){
+			return next < to;
+		}
+
+		@Override
+		public Triple next(){
+			if(next >= to)
+				throw new NoSuchElementException();
+			int t = index == null ? next : index[next];
+			next++;
+			return Triple.create(nodes[subjects[t]], nodes[predicates[t]], nodes[objects[t]]);
+		}
+	}
+
+
+	/*
+	 * Collects triples (also as a StreamRDF, e.g. parser output) and builds the graph.
+	 * Not thread-safe; build() may be called once.
+	 */
+	public static class Builder extends StreamRDFBase {
+		private Node[] nodes = new Node[1024];
+		private int[] hashTable = new int[2048];
+		private int terms = 0;
+
+		private int[] s = new int[1024];
+		private int[] p = new int[1024];
+		private int[] o = new int[1024];
+		private int size = 0;
+
+		@Override
+		public void triple(Triple triple){
+			add(triple.getSubject(), triple.getPredicate(), triple.getObject());
+		}
+
+		public void add(Node subject, Node predicate, Node object){
+			if(size == s.length){
+				s = Arrays.copyOf(s, size * 2);
+				p = Arrays.copyOf(p, size * 2);
+				o = Arrays.copyOf(o, size * 2);
+			}
+			s[size] = intern(subject);
+			p[size] = intern(predicate);
+			o[size] = intern(object);
+			size++;
+		}
+
+		private int intern(Node node){
+			int mask = hashTable.length - 1;
+			int slot = mix(node.hashCode()) & mask;
+			for(; ; slot = (slot + 1) & mask){
+				int id = hashTable[slot] - 1;
+				if(id < 0)
+					break;
+				if(nodes[id].equals(node))
+					return id;
+			}
+
+			if(terms == nodes.length)
+				nodes = Arrays.copyOf(nodes, terms * 2);
+			nodes[terms] = node;
+			hashTable[slot] = ++terms;
+			// load factor <= 0.5
+			if(terms * 2 > hashTable.length)
+				hashTable = rehash(nodes, terms, hashTable.length * 2);
+			return terms - 1;
+		}
+
+		private static int[] rehash(Node[] nodes, int terms, int capacity){
+			int[] table = new int[capacity];
+			int mask = capacity - 1;
+			for(int id = 0; id < terms; id++){
+				int slot = mix(nodes[id].hashCode()) & mask;
+				while(table[slot] != 0)
+					slot = (slot + 1) & mask;
+				table[slot] = id + 1;
+			}
+			return table;
+		}
+
+		public CompactGraph build(){
+			int n = size;
+			// sort into SPO order, duplicates are dropped (a graph is a set)
+			int[] spo = identity(n);
+			IntSort.sort(spo, (x, y) -> compare(s[x], p[x], o[x], s[y], p[y], o[y]));
+			int unique = 0;
+			for(int i = 0; i < n; i++){
+				int t = spo[i];
+				if(unique == 0 || compare(s[t], p[t], o[t], s[spo[unique - 1]], p[spo[unique - 1]], o[spo[unique - 1]]) != 0)
+					spo[unique++] = t;
+			}
+
+			int[] subjects = new int[unique], predicates = new int[unique], objects = new int[unique];
+			for(int i = 0; i < unique; i++){
+				subjects[i] = s[spo[i]];
+				predicates[i] = p[spo[i]];
+				objects[i] = o[spo[i]];
+			}
+			s = p = o = null;
+
+			int[] pos = identity(unique);
+			IntSort.sort(pos, (x, y) -> compare(predicates[x], objects[x], subjects[x], predicates[y], objects[y], subjects[y]));
+			int[] osp = identity(unique);
+			IntSort.sort(osp, (x, y) -> compare(objects[x], subjects[x], predicates[x], objects[y], subjects[y], predicates[y]));
+
+			return new CompactGraph(Arrays.copyOf(nodes, terms), hashTable, subjects, predicates, objects, pos, osp);
+		}
+
+		private static int[] identity(int n){
+			int[] a = new int[n];
+			for(int i = 0; i < n; i++)
+				a[i] = i;
+			return a;
+		}
+	}
+
+
+	// stable merge sort of int arrays with a primitive comparator (Arrays.sort has none for int[] without boxing)
+	static class IntSort {
+		interface IntComparator {
+			int compare(int a, int b);
+		}
+
+		private static final int INSERTION_SORT_THRESHOLD = 32;
+
+		static void sort(int[] a, IntComparator c){
+			int[] buffer = a.clone();
+			mergeSort(buffer, a, 0, a.length, c);
+		}
+
+		// sorts src[from, to) into dst[from, to); both arrays hold the same values at start
+		private static void mergeSort(int[] src, int[] dst, int from, int to, IntComparator c){
+			if(to - from <= INSERTION_SORT_THRESHOLD){
+				for(int i = from + 1; i < to; i++){
+					int v = dst[i];
+					int j = i - 1;
+					for(; j >= from && c.compare(dst[j], v) > 0; j--)
+						dst[j + 1] = dst[j];
+					dst[j + 1] = v;
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			// halves are sorted into src, then merged into dst
+			mergeSort(dst, src, from, mid, c);
+			mergeSort(dst, src, mid, to, c);
+			if(c.compare(src[mid - 1], src[mid]) <= 0){
+				System.arraycopy(src, from, dst, from, to - from);
+				return;
+			}
+			for(int i = from, l = from, r = mid; i < to; i++)
+				dst[i] = r >= to || (l < mid && c.compare(src[l], src[r]) <= 0) ? src[l++] : src[r++];
+		}
+	}
+
+
+	// Jena 3.6 has no read-only Capabilities to extend (AllCapabilities allows everything) and the interface still
+	// declares the deprecated methods, they have to be implemented to answer false as well
+	@SuppressWarnings("deprecation")
+	private static class ReadOnlyCapabilities implements Capabilities {
+		@Override public boolean sizeAccurate(){ return true; }
+		@Override public boolean addAllowed(){ return false; }
+		@Override public boolean addAllowed(boolean everyTriple){ return false; }
+		@Override public boolean deleteAllowed(){ return false; }
+		@Override public boolean deleteAllowed(boolean everyTriple){ return false; }
+		@Override public boolean iteratorRemoveAllowed(){ return false; }
+		@Override public boolean canBeEmpty(){ return true; }
+		@Override public boolean findContractSafe(){ return true; }
+		@Override public boolean handlesLiteralTyping(){ return false; }
+	}
+}
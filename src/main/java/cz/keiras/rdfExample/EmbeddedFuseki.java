@@ -0,0 +1,116 @@
+package cz.keiras.rdfExample;
+
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.system.Txn;
+
+
+/*
+ * In-process Fuseki server, replaces the manual setup described in Fuseki.java.
+ *
+ * The server runs on Jetty inside this JVM with the example data preloaded, so Fuseki.fusekiSelect/
+ * fusekiConstruct/fusekiUpdate can be run and measured without any external process.
+ * main() compares latency of the same queries executed
+ * - over loopback HTTP against the embedded server (query is serialized, sent, results parsed back)
+ * - directly against the Dataset (Fuseki.useLocal), no HTTP nor result serialization
+ * */
+
+
+public class EmbeddedFuseki {
+	static final int PORT = 3030;
+	static final String DATASET_NAME = "/dbm2";
+	static final int ROUNDS = 200;
+
+	public static void main(String[] arg){
+		Dataset dataset = exampleDataset();
+		FusekiServer server = start(PORT, DATASET_NAME, dataset);
+		try {
+			String root = "http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b";
+
+			Fuseki.useRemote(serviceUrl(PORT, DATASET_NAME));
+			measure("HTTP  construct depth 2", () -> Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(root)));
+			measure("HTTP  select therapy/ibd", () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)));
+			measure("HTTP  select therapy/patient", () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT)));
+			// rows are counted while parsed from the socket, no list is built
+			measure("HTTP  select therapy/ibd streamed", () -> {
+				try(Stream<QuerySolution> rows = Fuseki.remote().selectStream(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD))){
+					return rows.count();
+				}
+			});
+			// RDF Thrift results instead of SPARQL XML / N-Triples
+			Fuseki.remote().setBinaryResults(true);
+			measure("HTTP  construct depth 2 thrift", () -> Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(root)));
+			measure("HTTP  select therapy/ibd thrift", () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)));
+			Fuseki.remote().setBinaryResults(false);
+
+			Fuseki.useLocal(dataset);
+			measure("local construct depth 2", () -> Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(root)));
+			measure("local select therapy/ibd", () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)));
+			measure("local select therapy/patient", () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT)));
+
+			// update changes the data, run it once in each mode (second run finds nothing to move)
+			Fuseki.useRemote(serviceUrl(PORT, DATASET_NAME));
+			measure("HTTP  update move therapy", 1, () -> {
+				Fuseki.fusekiUpdate(Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT));
+				return true;
+			});
+			Fuseki.useLocal(dataset);
+			measure("local update move therapy", 1, () -> {
+				Fuseki.fusekiUpdate(Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT));
+				return true;
+			});
+		} finally {
+			server.stop();
+		}
+	}
+
+	// transactional in-memory dataset with dataset.rdf and dataset2.ttl in the default graph
+	public static Dataset exampleDataset(){
+		Dataset dataset = DatasetFactory.createTxnMem();
+		Txn.executeWrite(dataset, () -> {
+			// dataset.rdf is in N-Triples despite the file extension, the extension would win over a plain lang hint
+			RDFParser.source("example/dataset.rdf").forceLang(Lang.NTRIPLES).parse(dataset.asDatasetGraph());
+			RDFDataMgr.read(dataset, "example/dataset2.ttl", Lang.TURTLE);
+		});
+		return dataset;
+	}
+
+	// Fuseki on localhost only; query, update and graph store endpoints are available under the dataset name
+	public static FusekiServer start(int port, String datasetName, Dataset dataset){
+		return FusekiServer.create()
+				.setPort(port)
+				.setLoopback(true)
+				.add(datasetName, dataset, true)
+				.build()
+				.start();
+	}
+
+	public static String serviceUrl(int port, String datasetName){
+		return "http://localhost:" + port + datasetName;
+	}
+
+	static void measure(String label, Supplier<?> call){
+		measure(label, ROUNDS, call);
+	}
+
+	// prints mean latency; the first (warm-up) fifth of the rounds is not counted
+	static void measure(String label, int rounds, Supplier<?> call){
+		int warmup = rounds / 5;
+		for(int i = 0; i < warmup; i++)
+			call.get();
+
+		long start = System.nanoTime();
+		for(int i = warmup; i < rounds; i++)
+			call.get();
+		int measured = Math.max(1, rounds - warmup);
+		System.out.format("%-36s %8.3f ms/call (%d calls)%n", label, (System.nanoTime() - start) / 1e6 / measured, measured);
+	}
+}
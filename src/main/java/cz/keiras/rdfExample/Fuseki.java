@@ -3,7 +3,12 @@ package cz.keiras.rdfExample;
 import java.util.ArrayList;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.QueryParseException;
@@ -11,9 +16,9 @@ import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.system.Txn;
 import org.apache.jena.update.UpdateExecutionFactory;
-import org.apache.jena.update.UpdateFactory;
-import org.apache.jena.update.UpdateProcessor;
+import org.apache.jena.update.UpdateRequest;
 
 
 /*
@@ -25,6 +30,14 @@ import org.apache.jena.update.UpdateProcessor;
  * - dataset -> dbm2 -> upload files -> select data file (best results when using xml or ttl formats with prefixes specified)
  * - dataset -> dbm2 -> edit -> list current graphs -> default -> content of the rdf graph should be displayed
  * 
+ * Without external server:
+ * - run with argument "embedded" - Fuseki server is started in-process (EmbeddedFuseki) with example data preloaded
+ * - run with argument "local" - queries are executed directly against in-memory dataset, no HTTP at all
+ * 
+ * Local changes:
+ * - a Model edited locally does not need to be uploaded again, ChangeTracker records its changes and
+ *   sends only them (DELETE DATA / INSERT DATA), see ChangeTracker.main
+ * 
  * common issues:
  * - When uploading data files with improper file extension, fuseki will return an error and abort upload.
  *   Try changing file extension or converting to other serialization.
@@ -34,51 +47,241 @@ import org.apache.jena.update.UpdateProcessor;
 
 public class Fuseki {
 	private static final String SERVICE_URL = "http://localhost:3030/dbm2";
-	private static final String SERVICE_QUERY = SERVICE_URL + "/query";
-	private static final String SERVICE_UPDATE = SERVICE_URL + "/update";
+	
+	// service used by fusekiSelect/fusekiConstruct/fusekiUpdate, see useRemote() and useLocal()
+	// client keeps a pool of keep-alive connections, it is shared by all calls
+	private static SparqlClient remote = new SparqlClient(SERVICE_URL);
+	// when set, queries are executed directly against this dataset (no HTTP)
+	private static Dataset localDataset = null;
+	// opt-in cache of fusekiSelect/fusekiConstruct results, invalidated by writes to the service; null = no cache
+	private static QueryResultCache cache = null;
+	static {
+		// writes of every client of the remote service, not only of fusekiUpdate (AsyncFuseki, UpdateBatcher, ...)
+		SparqlClient.addWriteListener(new SparqlClient.WriteListener(){
+			@Override
+			public void updated(SparqlClient client, UpdateRequest request){
+				QueryResultCache c = remoteCache(client);
+				if(c != null)
+					c.invalidate(request);
+			}
+
+			@Override
+			public void loaded(SparqlClient client, String graphUri, Model model){
+				QueryResultCache c = remoteCache(client);
+				if(c != null)
+					c.invalidate(model.getGraph());
+			}
+		});
+	}
+	
+	// queries below parsed once, parameters are bound into the parsed query (see QueryTemplates)
+	static final String CONSTRUCT_DEPTH2 = "constructDepth2";
+	static final String SELECT_THERAPY_ON_IBD = "selectTherapyOnIbd";
+	static final String SELECT_THERAPY_ON_PATIENT = "selectTherapyOnPatient";
+	static final String MOVE_THERAPY_TO_PATIENT = "moveTherapyToPatient";
+	static final QueryTemplates TEMPLATES = new QueryTemplates();
+	static {
+		TEMPLATES.registerQuery(CONSTRUCT_DEPTH2, getConstructQueryStringDepth2Template());
+		TEMPLATES.registerQuery(SELECT_THERAPY_ON_IBD, getSelectTherapyOnIbdString());
+		TEMPLATES.registerQuery(SELECT_THERAPY_ON_PATIENT, getSelectTherapyOnPatientString());
+		TEMPLATES.registerUpdate(MOVE_THERAPY_TO_PATIENT, moveTherapyFromIbdToPatient());
+	}
 	
 	public static void main(String[] arg){
-		//get submodel containing specified node and its children up to depth 2 (X0->X1->X2)
-		Model m = fusekiConstruct(getConstructQueryStringDepth2("http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b"));
-		for(Statement s : m.listStatements().toList())
-			System.out.println(s);
-		
-		System.out.println("----------");
+		// "embedded" - start in-process Fuseki server with example data instead of using external one
+		// "local"    - execute queries directly against in-memory example dataset, no HTTP at all
+		FusekiServer server = null;
+		if(arg.length > 0 && arg[0].equals("embedded")){
+			server = EmbeddedFuseki.start(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME, EmbeddedFuseki.exampleDataset());
+			useRemote(EmbeddedFuseki.serviceUrl(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME));
+		}
+		else if(arg.length > 0 && arg[0].equals("local"))
+			useLocal(EmbeddedFuseki.exampleDataset());
 		
-		// selects Patient nodes -> IBD node -> Therapy node
-		System.out.println(fusekiSelect(getSelectTherapyOnIbdString()));
-		// selects Patient nodes -> Therapy node
-		System.out.println(fusekiSelect(getSelectTherapyOnPatientString()));
+		// independent queries are submitted at once and run in parallel, results are printed in submission order
+		try(AsyncFuseki async = async()){
+			//get submodel containing specified node and its children up to depth 2 (X0->X1->X2)
+			CompletableFuture<Model> depth2 = async.construct(getConstructQueryDepth2("http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b"));
+			// selects Patient nodes -> IBD node -> Therapy node
+			CompletableFuture<List<QuerySolution>> onIbd = async.select(TEMPLATES.query(SELECT_THERAPY_ON_IBD));
+			// selects Patient nodes -> Therapy node
+			CompletableFuture<List<QuerySolution>> onPatient = async.select(TEMPLATES.query(SELECT_THERAPY_ON_PATIENT));
 
-		System.out.println("----------");
+			// change Therapy nodes to be direct descendants of Patient nodes
+			// starts after the queries above, the queries below see its result
+			CompletableFuture<Void> move = async.update(TEMPLATES.update(MOVE_THERAPY_TO_PATIENT));
+
+			CompletableFuture<List<QuerySolution>> onIbdAfter = async.select(TEMPLATES.query(SELECT_THERAPY_ON_IBD));
+			CompletableFuture<List<QuerySolution>> onPatientAfter = async.select(TEMPLATES.query(SELECT_THERAPY_ON_PATIENT));
+
+			for(Statement s : depth2.join().listStatements().toList())
+				System.out.println(s);
+			
+			System.out.println("----------");
+			
+			System.out.println(onIbd.join());
+			System.out.println(onPatient.join());
+
+			System.out.println("----------");
+			
+			move.join();
+			System.out.println(onIbdAfter.join());
+			System.out.println(onPatientAfter.join());
+		}
 		
-		// change Therapy nodes to be direct descendants of Patient nodes
-		fusekiUpdate(moveTherapyFromIbdToPatient());
+		System.out.println("----------");
+		TEMPLATES.getStats().values().forEach(System.out :: println);
+		System.out.println(TEMPLATES.summary());
+		System.out.println("----------");
+		Metrics.export(Metrics.printer(System.out));
 		
-		// selects Patient nodes -> IBD node -> Therapy node
-		System.out.println(fusekiSelect(getSelectTherapyOnIbdString()));
-		// selects Patient nodes -> Therapy node
-		System.out.println(fusekiSelect(getSelectTherapyOnPatientString()));
+		if(server != null)
+			server.stop();
 	}
 
+    // send queries to a SPARQL service, e.g. "http://localhost:3030/dbm2" (Fuseki dataset URL)
+    public static void useRemote(String serviceUrl) {
+        useRemote(new SparqlClient(serviceUrl));
+    }
+
+    // send queries through given client (custom pool size, timeouts)
+    public static void useRemote(SparqlClient client) {
+        SparqlClient previous = remote;
+        remote = client;
+        localDataset = null;
+        if (previous != client)
+            IO.close(previous);
+        clearCache();
+    }
+
+    // the client used in remote mode, offers also streaming select/construct
+    public static SparqlClient remote() {
+        return remote;
+    }
+
+    // asynchronous executor for the current service (remote or local), close it when done; the remote client stays open
+    public static AsyncFuseki async() {
+        Dataset dataset = localDataset;
+        if (dataset != null)
+            return new AsyncFuseki(dataset, AsyncFuseki.DEFAULT_QUERY_CONCURRENCY, AsyncFuseki.DEFAULT_MAX_PENDING, AsyncFuseki.DEFAULT_TIMEOUT_MS);
+        return new AsyncFuseki(remote);
+    }
+
+    // execute queries in-process against the dataset, skipping HTTP and result serialization completely
+    public static void useLocal(Dataset dataset) {
+        localDataset = dataset;
+        clearCache();
+    }
+
+    // cache results of SELECT and CONSTRUCT queries (null turns the cache off); it is invalidated by fusekiUpdate,
+    // by local updates of AsyncFuseki and by writes of any SparqlClient to the remote service, see QueryResultCache
+    public static void useCache(QueryResultCache resultCache) {
+        cache = resultCache;
+    }
+
+    public static QueryResultCache cache() {
+        return cache;
+    }
+
+    // the cache when the client writes to the service of remote queries
+    private static QueryResultCache remoteCache(SparqlClient client) {
+        QueryResultCache c = cache;
+        if (c == null || localDataset != null || !client.getUpdateEndpoint().equals(remote.getUpdateEndpoint()))
+            return null;
+        return c;
+    }
+
+    // update applied to a local dataset outside of fusekiUpdate (e.g. AsyncFuseki)
+    static void updatedLocal(Dataset dataset, UpdateRequest request) {
+        QueryResultCache c = cache;
+        if (c != null && dataset == localDataset)
+            c.invalidate(request);
+    }
+
+    // model added to a graph of a local dataset outside of fusekiUpdate (e.g. UpdateBatcher.bulkLoad)
+    static void loadedLocal(Dataset dataset, Model model) {
+        QueryResultCache c = cache;
+        if (c != null && dataset == localDataset)
+            c.invalidate(model.getGraph());
+    }
+
+    // results of the previous service are not valid for the new one
+    private static void clearCache() {
+        QueryResultCache c = cache;
+        if (c != null)
+            c.clear();
+    }
+
 	// dealing with update queries (DELETE, INSERT)
     public static boolean fusekiUpdate(String q) {
         // Strinq q is query to be executed
+        UpdateRequest request;
         try {
-            UpdateProcessor upp = UpdateExecutionFactory.createRemote(UpdateFactory.create(q), SERVICE_UPDATE);
-            upp.execute();
-            return true;
+            request = parseUpdate(q);
         } catch (QueryParseException ex) {
-            // query is not valid
+            // query is not valid, counted in sparql-parse.errors
             System.out.println("invalid query: " + q);
             return false;
         }
+        fusekiUpdate(request);
+        return true;
+    }
+
+    // already parsed update, e.g. from TEMPLATES
+    // latency, operations and errors of all fuseki* calls are recorded in Metrics (per template too)
+    public static void fusekiUpdate(UpdateRequest request) {
+        Metrics.query(Metrics.Operation.UPDATE, request, () -> {
+            Dataset dataset = localDataset;
+            if (dataset == null) {
+                // the cache is invalidated by the write listener, also after a failure
+                remote.update(request);
+                return request;
+            }
+            try {
+                Txn.executeWrite(dataset, () -> UpdateExecutionFactory.create(request, dataset).execute());
+            } finally {
+                updatedLocal(dataset, request);
+            }
+            return request;
+        }, r -> r.getOperations().size());
     }
 
     // dealing with SELECT queries
     public static List<QuerySolution> fusekiSelect(String q) {
+        return fusekiSelect(parse(q));
+    }
+
+    // already parsed query, e.g. from TEMPLATES
+    public static List<QuerySolution> fusekiSelect(Query q) {
+        return Metrics.query(Metrics.Operation.SELECT, q, () -> {
+            QueryResultCache c = cache;
+            if (c != null)
+                return c.select(q, Fuseki::select);
+            return select(q);
+        }, List::size);
+    }
+
+    // query text parsed at call time: a template miss (see QueryTemplates.parseQuery)
+    // invalid queries are counted in sparql-parse.errors, QueryParseException is thrown as before
+    static Query parse(String q) {
+        return Metrics.query(Metrics.Operation.SPARQL_PARSE, q, () -> TEMPLATES.parseQuery(q), query -> 1);
+    }
+
+    static UpdateRequest parseUpdate(String u) {
+        return Metrics.query(Metrics.Operation.SPARQL_PARSE, u, () -> TEMPLATES.parseUpdate(u), r -> 1);
+    }
+
+    private static List<QuerySolution> select(Query q) {
+        Dataset dataset = localDataset;
+        if (dataset != null)
+            // local results are backed by the dataset, copy them while the read transaction is open
+            return Txn.calculateRead(dataset, () -> collect(QueryExecutionFactory.create(q, dataset)));
+
         // run Select SPARQL query
-        QueryExecution qe = QueryExecutionFactory.sparqlService(SERVICE_QUERY, q);
+        return remote.select(q);
+    }
+
+    private static List<QuerySolution> collect(QueryExecution qe) {
         ResultSet results = qe.execSelect();
 
         // ResultSet needs to be parsed before closing QueryExecution
@@ -94,15 +297,50 @@ public class Fuseki {
 
     // dealing with CONSTRUCT queries
     public static Model fusekiConstruct(String q) {
+        return fusekiConstruct(parse(q));
+    }
+
+    // already parsed query, e.g. from TEMPLATES
+    public static Model fusekiConstruct(Query q) {
+        return Metrics.query(Metrics.Operation.CONSTRUCT, q, () -> {
+            QueryResultCache c = cache;
+            if (c != null)
+                return c.construct(q, Fuseki::construct);
+            return construct(q);
+        }, Model::size);
+    }
+
+    private static Model construct(Query q) {
+        Dataset dataset = localDataset;
+        if (dataset != null)
+            // execConstruct() copies the result into a new in-memory model
+            return Txn.calculateRead(dataset, () -> construct(QueryExecutionFactory.create(q, dataset)));
+
         // run Construct SPARQL query
-        QueryExecution qe = QueryExecutionFactory.sparqlService(SERVICE_QUERY, q);
+        return remote.construct(q);
+    }
+
+    private static Model construct(QueryExecution qe) {
         Model results = qe.execConstruct();
         qe.close();
 
         return results;
     }
 
+    // text of the query for other tools; not a template hit, fusekiConstruct(String) parses it again
+    /** @deprecated use {@link #getConstructQueryDepth2(String)} */
+    @Deprecated
     public static String getConstructQueryStringDepth2(String rootNodeUri) {
+        return TEMPLATES.queryText(CONSTRUCT_DEPTH2, "root", QueryTemplates.uri(rootNodeUri));
+    }
+
+    // ?root replaced by the URI in parsed template: "<uri> ?p1 ?o1" instead of "?root ?p1 ?o1 ... FILTER (?root = <uri>)"
+    public static Query getConstructQueryDepth2(String rootNodeUri) {
+        return TEMPLATES.query(CONSTRUCT_DEPTH2, "root", QueryTemplates.uri(rootNodeUri));
+    }
+
+    // ?root is a parameter
+    static String getConstructQueryStringDepth2Template() {
         return "CONSTRUCT {"
                 + "?root ?p1 ?o1. "
                 + "?o1 ?p2 ?o2. "
@@ -112,7 +350,6 @@ public class Fuseki {
                 + "  union "
                 + "  { ?root ?p1 ?o1 . "
                 + "    ?o1 ?p2 ?o2 .} "
-                + "FILTER (?root = <" + rootNodeUri + ">) "
                 + "}";
     }
 
@@ -0,0 +1,208 @@
+package cz.keiras.rdfExample;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+
+/*
+ * Depth-first traversal of a graph from one root node, without recursion.
+ *
+ * - explicit stack of frames (node, depth, its resource edges, next edge), so depth of the graph is limited by heap,
+ *   not by the thread stack
+ * - visited nodes in a HashMap<Node, depth> - O(1) lookups (the former static ArrayList in RdfExplore made the traversal O(n^2))
+ * - properties of each node are read by one graph.find() and split into literal and resource edges
+ * - all state is local to the call, traversals can run concurrently on one graph
+ * - optional depth limit: maxDepth = 2 visits the same triples as Fuseki.getConstructQueryDepth2()
+ *   DFS may reach a node first by a longer path, where the limit cuts its edges; when it is reached again by
+ *   a shorter path, it is entered again (visitors see it twice), so every node within maxDepth is expanded
+ *
+ * The order of events is the order of the recursive RdfExplore.printDataHierarchy: a node, its literals,
+ * then its resource edges one by one, each followed by the whole subtree of its object. Whether the object
+ * was already visited is decided when its edge is reached, exactly as in the recursion.
+ *
+ * Callers get events through a Visitor, see Printer (printDataHierarchy output) and SubgraphCollector.
+ * */
+
+
+public class GraphTraversal {
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	// how an edge to a resource was handled
+	public enum Edge {
+		TREE,			// object is visited next (its subtree follows)
+		VISITED,		// object was visited before, not entered again
+		DEPTH_LIMIT		// object is beyond maxDepth, not entered
+	}
+
+	/*
+	 * Events of a traversal. depth of the root is 1.
+	 * enterNode may return false to skip properties of the node (it stays marked as visited).
+	 */
+	public interface Visitor {
+		default boolean enterNode(Node node, int depth){ return true; }
+		default void literal(Triple triple, int depth){}
+		default void edge(Triple triple, int depth, Edge kind){}
+		default void leaveNode(Node node, int depth){}
+	}
+
+	public static void traverse(Model model, Resource root, int maxDepth, Visitor visitor){
+		traverse(model.getGraph(), root.asNode(), maxDepth, visitor);
+	}
+
+	public static void traverse(Graph graph, Node root, int maxDepth, Visitor visitor){
+		long start = System.nanoTime();
+		long triples = 0;
+		// node -> smallest depth it was entered at
+		Map<Node, Integer> visited = new HashMap<>();
+		Deque<Frame> stack = new ArrayDeque<>();
+
+		Frame frame = enter(graph, root, 1, visited, visitor);
+		if(frame != null){
+			triples += frame.triples();
+			stack.push(frame);
+		}
+
+		while(!stack.isEmpty()){
+			frame = stack.peek();
+			if(frame.next == frame.edges.size()){
+				stack.pop();
+				visitor.leaveNode(frame.node, frame.depth);
+				continue;
+			}
+
+			Triple edge = frame.edges.get(frame.next++);
+			Node object = edge.getObject();
+			Integer entered = visited.get(object);
+			// without a limit, the first entry expands the whole subtree
+			if(entered != null && (maxDepth == UNLIMITED || entered <= frame.depth + 1))
+				visitor.edge(edge, frame.depth, Edge.VISITED);
+			else if(frame.depth >= maxDepth)
+				visitor.edge(edge, frame.depth, Edge.DEPTH_LIMIT);
+			else {
+				visitor.edge(edge, frame.depth, Edge.TREE);
+				Frame child = enter(graph, object, frame.depth + 1, visited, visitor);
+				if(child != null){
+					triples += child.triples();
+					stack.push(child);
+				}
+			}
+		}
+		Metrics.record(Metrics.Operation.TRAVERSE, start, triples);
+	}
+
+	// marks the node, reports it and its literals; returns frame with resource edges or null when the node is skipped
+	private static Frame enter(Graph graph, Node node, int depth, Map<Node, Integer> visited, Visitor visitor){
+		visited.put(node, depth);
+		if(!visitor.enterNode(node, depth)){
+			visitor.leaveNode(node, depth);
+			return null;
+		}
+
+		List<Triple> edges = new ArrayList<>();
+		int literals = 0;
+		ExtendedIterator<Triple> it = graph.find(node, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()){
+				Triple t = it.next();
+				if(t.getObject().isLiteral()){
+					visitor.literal(t, depth);
+					literals++;
+				}
+				else
+					edges.add(t);
+			}
+		} finally {
+			it.close();
+		}
+		return new Frame(node, depth, edges, literals);
+	}
+
+	// subgraph reachable from root within maxDepth (literals and edges of all entered nodes)
+	public static Graph subgraph(Graph graph, Node root, int maxDepth){
+		SubgraphCollector collector = new SubgraphCollector();
+		traverse(graph, root, maxDepth, collector);
+		return collector.getGraph();
+	}
+
+
+	private static class Frame {
+		final Node node;
+		final int depth;
+		final List<Triple> edges;
+		final int literals;
+		int next = 0;
+
+		Frame(Node node, int depth, List<Triple> edges, int literals){
+			this.node = node;
+			this.depth = depth;
+			this.edges = edges;
+			this.literals = literals;
+		}
+
+		// triples of the node read from the graph
+		int triples(){
+			return literals + edges.size();
+		}
+	}
+
+
+	// output of the former recursive RdfExplore.printDataHierarchy
+	public static class Printer implements Visitor {
+		@Override
+		public boolean enterNode(Node node, int depth){
+			System.out.format("%s%n", localName(node));
+			return true;
+		}
+
+		@Override
+		public void literal(Triple triple, int depth){
+			// LiteralLabel.toString() is the text of Literal.toString(): lexical form, ^^datatype, @lang, no quotes
+			System.out.format("%" + (2 * depth) + "s%s %s%n", "", triple.getPredicate().getLocalName(), triple.getObject().getLiteral());
+		}
+
+		@Override
+		public void edge(Triple triple, int depth, Edge kind){
+			if(kind == Edge.TREE)
+				System.out.format("%" + (2 * depth) + "s%s ", "", triple.getPredicate().getLocalName());
+			else if(kind == Edge.DEPTH_LIMIT)
+				System.out.format("%" + (2 * depth) + "s%s %s ...%n", "", triple.getPredicate().getLocalName(), localName(triple.getObject()));
+		}
+
+		// as Resource.getLocalName(): null for blank nodes
+		static String localName(Node node){
+			return node.isURI() ? node.getLocalName() : null;
+		}
+	}
+
+
+	// copies every reported triple into a new graph
+	public static class SubgraphCollector implements Visitor {
+		private final Graph graph = GraphFactory.createDefaultGraph();
+
+		@Override
+		public void literal(Triple triple, int depth){
+			graph.add(triple);
+		}
+
+		@Override
+		public void edge(Triple triple, int depth, Edge kind){
+			graph.add(triple);
+		}
+
+		public Graph getGraph(){
+			return graph;
+		}
+	}
+}
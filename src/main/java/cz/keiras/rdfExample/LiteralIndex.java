@@ -0,0 +1,467 @@
+package cz.keiras.rdfExample;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphListener;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.mem.GraphMem;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.SimpleSelector;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.pfunction.PropFuncArg;
+import org.apache.jena.sparql.pfunction.PropFuncArgType;
+import org.apache.jena.sparql.pfunction.PropertyFunctionBase;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
+import org.apache.jena.sparql.util.IterLib;
+
+import cz.zcu.mre.vocab.DS;
+
+
+/*
+ * Index of literal values of one property, for filters like "city = X", "city != X", "city contains X".
+ *
+ * printAddressesNotInPlzen used a SimpleSelector with selects() overridden: every ds:addressCity statement
+ * was visited and its value lower-cased (a new String per triple) on every call. The index is built by one
+ * scan of the property:
+ * - values are normalized once (NFC + lower case), each distinct value gets an id
+ * - equality: hash map normalized value -> value id
+ * - substring: trigram -> sorted value ids; a needle is looked up by intersecting postings of its trigrams,
+ *   candidates are verified by String.contains on the (few) distinct values, never on triples
+ * - negations (notEqual, notContains) are complements over the value ids
+ * Results keep the order of the original scan (graph.find(ANY, property, ANY)).
+ *
+ * Indexes are cached per graph and property (forProperty); any change of the graph drops its indexes.
+ * Only graphs whose events report every write are cached: GraphMem (Models created by ModelFactory) and
+ * the read-only CompactGraph. Graphs of a Dataset are views, a new one on every call, and writes through
+ * the dataset (SPARQL UPDATE, TDB) bypass their event managers, so their index is built at each call.
+ * Objects which are not literals are not indexed and match no filter.
+ *
+ * SPARQL: property functions in namespace NS, registered by register() (called also by forProperty)
+ *   ?s lit:contains (ds:addressCity "plzeň")					?s has a ds:addressCity value containing "plzeň"
+ *   (?s ?city) lit:notContains (ds:addressCity "plzeň")		binds also the value
+ *   lit:equals, lit:notEquals									the same for whole values
+ * instead of FILTER(!CONTAINS(LCASE(?city), "plzeň")) over all ?s ds:addressCity ?city.
+ *
+ * usage: LiteralIndex [synthetic triples] - compares the index with SimpleSelector and FILTER
+ * */
+
+
+public class LiteralIndex {
+	public static final String NS = "http://mre.zcu.cz/function/literal#";
+
+	// graph -> property -> index; weak keys, indexes of a dropped graph are dropped too
+	private static final Map<Graph, Map<Node, LiteralIndex>> CACHE = new WeakHashMap<>();
+	private static volatile boolean registered = false;
+
+	// indexed triples in scan order and the value id of each one
+	private final Triple[] triples;
+	private final int[] valueOf;
+	// distinct normalized values
+	private final String[] values;
+	private final Map<String, Integer> valueIds;
+	// triple positions (ascending) per value id
+	private final int[][] triplesOfValue;
+	// trigram -> value ids (ascending)
+	private final Map<Long, int[]> trigrams;
+
+	public static void main(String[] in){
+		long syntheticTriples = in.length > 0 ? Long.parseLong(in[0]) : 1_000_000;
+		Model model = SyntheticPatientGenerator.generateModel(syntheticTriples, 42);
+		String city = DS.ADDRESS_CITY.getURI();
+
+		for(int round = 0; round < 3; round++){
+			long start = System.nanoTime();
+			int selector = model.listStatements(new SimpleSelector(null, DS.ADDRESS_CITY, (RDFNode) null){
+				@Override
+				public boolean selects(Statement s){
+					return !s.getString().toLowerCase().contains("plzeň");
+				}
+			}).toList().size();
+			long selectorNanos = System.nanoTime() - start;
+
+			// built at the first round only
+			start = System.nanoTime();
+			LiteralIndex index = forProperty(model.getGraph(), DS.ADDRESS_CITY.asNode());
+			long buildNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int indexed = index.notContains("plzeň").size();
+			long indexNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int filter = count(model, "SELECT * { ?a <" + city + "> ?city FILTER(!CONTAINS(LCASE(?city), \"plzeň\")) }");
+			long filterNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int pfunction = count(model, "PREFIX lit: <" + NS + "> SELECT * { (?a ?city) lit:notContains (<" + city + "> \"plzeň\") }");
+			long pfunctionNanos = System.nanoTime() - start;
+
+			System.out.format("round %d: SimpleSelector %d in %.1f ms | index %d in %.2f ms (forProperty %.2f ms) | "
+					+ "FILTER %d in %.1f ms | lit:notContains %d in %.1f ms%n",
+					round, selector, selectorNanos / 1e6, indexed, indexNanos / 1e6, buildNanos / 1e6,
+					filter, filterNanos / 1e6, pfunction, pfunctionNanos / 1e6);
+		}
+	}
+
+	private static int count(Model model, String query){
+		try(QueryExecution qe = QueryExecutionFactory.create(query, model)){
+			int rows = 0;
+			for(ResultSet rs = qe.execSelect(); rs.hasNext(); rs.next())
+				rows++;
+			return rows;
+		}
+	}
+
+	/*
+	 * Cached index of the property in the graph, built at the first use.
+	 * The graph gets a listener, any added or deleted triple drops all its indexes.
+	 * Graphs which can change without events (see isCacheable) get a new index every time.
+	 */
+	public static LiteralIndex forProperty(Graph graph, Node property){
+		register();
+		if(!isCacheable(graph))
+			return build(graph, property);
+		Map<Node, LiteralIndex> indexes;
+		synchronized(CACHE){
+			indexes = CACHE.get(graph);
+			if(indexes == null){
+				indexes = new HashMap<>();
+				CACHE.put(graph, indexes);
+				graph.getEventManager().register(new Invalidator(graph));
+			}
+			LiteralIndex index = indexes.get(property);
+			if(index != null)
+				return index;
+		}
+
+		// built outside of the lock, two threads may build the same index, one of them wins
+		LiteralIndex index = build(graph, property);
+		synchronized(CACHE){
+			Map<Node, LiteralIndex> current = CACHE.get(graph);
+			if(current == indexes)
+				indexes.putIfAbsent(property, index);
+		}
+		return index;
+	}
+
+	// every change of these graphs goes through their own event manager
+	static boolean isCacheable(Graph graph){
+		return graph instanceof GraphMem || graph instanceof CompactGraph;
+	}
+
+	// new index of the property, not cached
+	public static LiteralIndex build(Graph graph, Node property){
+		List<Triple> triples = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		Map<String, Integer> valueIds = new HashMap<>();
+		IntArray valueOf = new IntArray();
+		List<IntArray> triplesOfValue = new ArrayList<>();
+
+		graph.find(Node.ANY, property, Node.ANY).forEachRemaining(t -> {
+			if(!t.getObject().isLiteral())
+				return;
+			String value = normalize(t.getObject().getLiteralLexicalForm());
+			Integer id = valueIds.get(value);
+			if(id == null){
+				id = values.size();
+				valueIds.put(value, id);
+				values.add(value);
+				triplesOfValue.add(new IntArray());
+			}
+			triplesOfValue.get(id).add(triples.size());
+			valueOf.add(id);
+			triples.add(t);
+		});
+
+		// trigram postings, value ids are added in ascending order
+		Map<Long, IntArray> trigrams = new HashMap<>();
+		for(int id = 0; id < values.size(); id++){
+			long last = -1;
+			for(long gram : trigrams(values.get(id))){
+				// the same trigram may repeat in one value, keep the postings unique
+				if(gram == last)
+					continue;
+				IntArray posting = trigrams.computeIfAbsent(gram, k -> new IntArray());
+				if(posting.size == 0 || posting.values[posting.size - 1] != id)
+					posting.add(id);
+				last = gram;
+			}
+		}
+
+		Map<Long, int[]> trigramIndex = new HashMap<>(trigrams.size() * 4 / 3 + 1);
+		trigrams.forEach((gram, posting) -> trigramIndex.put(gram, posting.toArray()));
+		int[][] postings = new int[triplesOfValue.size()][];
+		for(int id = 0; id < postings.length; id++)
+			postings[id] = triplesOfValue.get(id).toArray();
+
+		return new LiteralIndex(triples.toArray(new Triple[0]), valueOf.toArray(), values.toArray(new String[0]), valueIds, postings, trigramIndex);
+	}
+
+	private LiteralIndex(Triple[] triples, int[] valueOf, String[] values, Map<String, Integer> valueIds, int[][] triplesOfValue, Map<Long, int[]> trigrams){
+		this.triples = triples;
+		this.valueOf = valueOf;
+		this.values = values;
+		this.valueIds = valueIds;
+		this.triplesOfValue = triplesOfValue;
+		this.trigrams = trigrams;
+	}
+
+	// case and Unicode composition insensitive form of a value
+	static String normalize(String value){
+		return Normalizer.normalize(value, Normalizer.Form.NFC).toLowerCase(Locale.ROOT);
+	}
+
+	// trigrams of a normalized string packed into longs (3 x 16 bit chars), sorted
+	private static long[] trigrams(String s){
+		if(s.length() < 3)
+			return new long[0];
+		long[] grams = new long[s.length() - 2];
+		for(int i = 0; i < grams.length; i++)
+			grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+		Arrays.sort(grams);
+		return grams;
+	}
+
+	// ----- filters -----
+
+	public List<Triple> equal(String value){
+		Integer id = valueIds.get(normalize(value));
+		if(id == null)
+			return Collections.emptyList();
+		List<Triple> result = new ArrayList<>(triplesOfValue[id].length);
+		for(int t : triplesOfValue[id])
+			result.add(triples[t]);
+		return result;
+	}
+
+	public List<Triple> notEqual(String value){
+		Integer id = valueIds.get(normalize(value));
+		BitSet excluded = new BitSet(values.length);
+		if(id != null)
+			excluded.set(id);
+		return select(excluded, false);
+	}
+
+	public List<Triple> contains(String needle){
+		return select(valuesContaining(normalize(needle)), true);
+	}
+
+	public List<Triple> notContains(String needle){
+		return select(valuesContaining(normalize(needle)), false);
+	}
+
+	// number of distinct (normalized) values
+	public int distinctValues(){
+		return values.length;
+	}
+
+	public int size(){
+		return triples.length;
+	}
+
+	// triples whose value id is (or is not) in the set, in scan order
+	private List<Triple> select(BitSet valueSet, boolean in){
+		List<Triple> result = new ArrayList<>();
+		for(int t = 0; t < triples.length; t++)
+			if(valueSet.get(valueOf[t]) == in)
+				result.add(triples[t]);
+		return result;
+	}
+
+	// ids of values containing the needle
+	private BitSet valuesContaining(String needle){
+		BitSet result = new BitSet(values.length);
+		long[] grams = trigrams(needle);
+		if(grams.length == 0){
+			// too short for trigrams, test the distinct values
+			for(int id = 0; id < values.length; id++)
+				if(values[id].contains(needle))
+					result.set(id);
+			return result;
+		}
+
+		// values having all trigrams of the needle
+		int[] candidates = null;
+		for(long gram : grams){
+			int[] posting = trigrams.get(gram);
+			if(posting == null)
+				return result;
+			candidates = candidates == null ? posting : intersect(candidates, posting);
+		}
+		// trigrams are not ordered in the value, verify
+		for(int id : candidates)
+			if(values[id].contains(needle))
+				result.set(id);
+		return result;
+	}
+
+	private static int[] intersect(int[] a, int[] b){
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for(int i = 0, j = 0; i < a.length && j < b.length; ){
+			if(a[i] < b[j])
+				i++;
+			else if(a[i] > b[j])
+				j++;
+			else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	// ----- SPARQL property functions -----
+
+	public static void register(){
+		if(registered)
+			return;
+		synchronized(LiteralIndex.class){
+			if(registered)
+				return;
+			PropertyFunctionRegistry registry = PropertyFunctionRegistry.get();
+			registry.put(NS + "equals", uri -> new FilterFunction(Op.EQUALS));
+			registry.put(NS + "notEquals", uri -> new FilterFunction(Op.NOT_EQUALS));
+			registry.put(NS + "contains", uri -> new FilterFunction(Op.CONTAINS));
+			registry.put(NS + "notContains", uri -> new FilterFunction(Op.NOT_CONTAINS));
+			registered = true;
+		}
+	}
+
+	enum Op {
+		EQUALS, NOT_EQUALS, CONTAINS, NOT_CONTAINS;
+
+		List<Triple> apply(LiteralIndex index, String value){
+			switch(this){
+			case EQUALS:		return index.equal(value);
+			case NOT_EQUALS:	return index.notEqual(value);
+			case CONTAINS:		return index.contains(value);
+			default:			return index.notContains(value);
+			}
+		}
+	}
+
+	/*
+	 * subject: ?s or (?s ?value) - variables or constants
+	 * object: (property "text")
+	 */
+	private static class FilterFunction extends PropertyFunctionBase {
+		private final Op op;
+
+		FilterFunction(Op op){
+			super(PropFuncArgType.PF_ARG_EITHER, PropFuncArgType.PF_ARG_LIST);
+			this.op = op;
+		}
+
+		@Override
+		public QueryIterator exec(Binding binding, PropFuncArg subject, Node predicate, PropFuncArg object, ExecutionContext execCxt){
+			if(object.getArgListSize() != 2)
+				throw new IllegalArgumentException(predicate + ": object must be (property \"text\")");
+			Node property = substitute(object.getArg(0), binding);
+			Node text = substitute(object.getArg(1), binding);
+			if(!property.isURI() || !text.isLiteral())
+				return IterLib.noResults(execCxt);
+
+			Node s = substitute(subject.isList() ? subject.getArg(0) : subject.getArg(), binding);
+			Node v = subject.isList() && subject.getArgListSize() > 1 ? substitute(subject.getArg(1), binding) : null;
+
+			List<Binding> results = new ArrayList<>();
+			for(Triple t : op.apply(forProperty(execCxt.getActiveGraph(), property), text.getLiteralLexicalForm())){
+				BindingMap b = BindingFactory.create(binding);
+				if(!bind(b, s, t.getSubject()) || (v != null && !bind(b, v, t.getObject())))
+					continue;
+				results.add(b);
+			}
+			return new QueryIterPlainWrapper(results.iterator(), execCxt);
+		}
+
+		// value of the variable in the binding, the node itself otherwise
+		private static Node substitute(Node node, Binding binding){
+			if(Var.isVar(node)){
+				Node value = binding.get(Var.alloc(node));
+				if(value != null)
+					return value;
+			}
+			return node;
+		}
+
+		// binds an unbound variable, or checks that a constant equals the value
+		private static boolean bind(BindingMap b, Node target, Node value){
+			if(Var.isVar(target)){
+				b.add(Var.alloc(target), value);
+				return true;
+			}
+			return target.equals(value);
+		}
+	}
+
+
+	// drops all indexes of the graph on any change (events include removeAll and bulk updates)
+	private static class Invalidator implements GraphListener {
+		private final Graph graph;
+
+		Invalidator(Graph graph){
+			this.graph = graph;
+		}
+
+		@Override public void notifyAddTriple(Graph g, Triple t){ invalidate(); }
+		@Override public void notifyAddArray(Graph g, Triple[] triples){ invalidate(); }
+		@Override public void notifyAddList(Graph g, List<Triple> triples){ invalidate(); }
+		@Override public void notifyAddIterator(Graph g, Iterator<Triple> it){ invalidate(); }
+		@Override public void notifyAddGraph(Graph g, Graph added){ invalidate(); }
+		@Override public void notifyDeleteTriple(Graph g, Triple t){ invalidate(); }
+		@Override public void notifyDeleteList(Graph g, List<Triple> triples){ invalidate(); }
+		@Override public void notifyDeleteArray(Graph g, Triple[] triples){ invalidate(); }
+		@Override public void notifyDeleteIterator(Graph g, Iterator<Triple> it){ invalidate(); }
+		@Override public void notifyDeleteGraph(Graph g, Graph removed){ invalidate(); }
+		@Override public void notifyEvent(Graph source, Object value){ invalidate(); }
+
+		private void invalidate(){
+			synchronized(CACHE){
+				CACHE.remove(graph);
+			}
+			graph.getEventManager().unregister(this);
+		}
+	}
+
+
+	// growable int array
+	private static class IntArray {
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value){
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int[] toArray(){
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
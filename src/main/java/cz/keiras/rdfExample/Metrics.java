@@ -0,0 +1,444 @@
+package cz.keiras.rdfExample;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.jena.ext.com.google.common.collect.MapMaker;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.Algebra;
+
+
+/*
+ * Latency histograms and counters of the hot paths, cheap enough to stay on in production.
+ *
+ * - per operation (parse, serialize, traverse, select, construct, update, SPARQL parse) and per query template:
+ *   "select" and "select[selectTherapyOnIbd]"; queries made by QueryTemplates are tagged with the template name
+ *   (weak identity map, the tag disappears with the Query object)
+ * - triples/rows moved by each operation are counted: "select.rows", "construct.triples", "parse.triples", ...
+ *   failures as "select.errors"
+ * - Histogram is log-linear as HdrHistogram: exact below 64, above that 32 linear sub-buckets per power of two
+ *   (<= 3.2 % relative error), fixed 1888 buckets, recording = a few atomic increments, no allocation, no locks
+ * - queries slower than the slow query threshold are reported with their algebra (the plan of the local engine,
+ *   remote servers optimize the same algebra) to the slow query log (System.err by default, see setSlowQueryLog)
+ * - everything is readable through JMX (cz.keiras.rdfExample:type=Metrics, e.g. in jconsole) and through
+ *   an Exporter called on demand or periodically (printer() writes the text report)
+ *
+ * Instrumented: Fuseki, AsyncFuseki, ParallelNTriplesLoader, StreamingConverter, BinarySnapshot, GraphTraversal.
+ *
+ * usage: Metrics [queries] - runs the Fuseki example queries locally and prints the report, the slow query
+ *        log (threshold 0) and the cost of one recording
+ * */
+
+
+public class Metrics {
+	public static final long DEFAULT_SLOW_QUERY_MS = 1000;
+	static final int SLOW_QUERIES_KEPT = 20;
+	static final String JMX_NAME = "cz.keiras.rdfExample:type=Metrics";
+
+	// name of the histogram: the operation, counters are <operation>.<unit> and <operation>.errors
+	public enum Operation {
+		PARSE("triples"),
+		SERIALIZE("triples"),
+		TRAVERSE("triples"),
+		SELECT("rows"),
+		CONSTRUCT("triples"),
+		UPDATE("operations"),
+		SPARQL_PARSE("queries");
+
+		final String key;
+		final String moved;
+		final String errors;
+		// histograms of the labels, names are concatenated once
+		final ConcurrentMap<String, Histogram> labels = new ConcurrentHashMap<>();
+
+		Operation(String unit){
+			this.key = name().toLowerCase().replace('_', '-');
+			this.moved = key + "." + unit;
+			this.errors = key + ".errors";
+		}
+
+		Histogram label(String label){
+			Histogram h = labels.get(label);
+			return h != null ? h : labels.computeIfAbsent(label, l -> histogram(key + "[" + l + "]"));
+		}
+	}
+
+	private static volatile boolean enabled = true;
+	private static volatile long slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_MS);
+	private static volatile Consumer<String> slowQueryLog = System.err::println;
+
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	// Query/UpdateRequest -> template name; identity keys (Query.equals compares the whole syntax tree)
+	private static final ConcurrentMap<Object, String> templates = new MapMaker().weakKeys().makeMap();
+	private static final Deque<String> slowQueries = new ArrayDeque<>();
+	private static ScheduledExecutorService exporters = null;
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName(JMX_NAME));
+		} catch (JMException | SecurityException e) {
+			// another class loader registered it first, or JMX is not available
+		}
+	}
+
+	public static void main(String[] arg){
+		int queries = arg.length > 0 ? Integer.parseInt(arg[0]) : 200;
+		Dataset dataset = EmbeddedFuseki.exampleDataset();
+		Fuseki.useLocal(dataset);
+
+		setSlowQueryThreshold(0, TimeUnit.MILLISECONDS);
+		Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD));
+		setSlowQueryThreshold(DEFAULT_SLOW_QUERY_MS, TimeUnit.MILLISECONDS);
+
+		for(int i = 0; i < queries; i++){
+			Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD));
+			Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT));
+			Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2("http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b"));
+			Fuseki.fusekiSelect("SELECT (COUNT(*) AS ?n) { ?s ?p ?o }");
+		}
+		Fuseki.fusekiUpdate("INSERT DATA { <http://example.org/a> <http://example.org/b> \"c\" }");
+		Fuseki.fusekiUpdate("not a query");
+		GraphTraversal.subgraph(dataset.getDefaultModel().getGraph(),
+				QueryTemplates.uri("http://mre.zcu.cz/id/ba613d1fc0d9300175611e31cca7cf9f525056cb"), GraphTraversal.UNLIMITED);
+		export(printer(System.out));
+
+		// cost of one recording (operation + label histogram, counter), the second round after JIT warm-up
+		int rounds = 10_000_000;
+		for(int round = 0; round < 2; round++){
+			long start = System.nanoTime();
+			for(int i = 0; i < rounds; i++)
+				record(Operation.TRAVERSE, "overhead", System.nanoTime() - start, 1);
+			if(round == 1)
+				System.out.format("%nrecording: %.1f ns per call (incl. System.nanoTime())%n", (double) (System.nanoTime() - start) / rounds);
+		}
+	}
+
+	// ----- recording -----
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on){
+		enabled = on;
+	}
+
+	// queries made from a template are recorded under the template name as well
+	public static void tag(Object queryOrUpdate, String template){
+		if(enabled)
+			templates.put(queryOrUpdate, template);
+	}
+
+	public static String templateOf(Object queryOrUpdate){
+		return templates.get(queryOrUpdate);
+	}
+
+	// latency since startNanos (System.nanoTime()) and number of triples/rows moved
+	public static void record(Operation operation, long startNanos, long moved){
+		record(operation, null, System.nanoTime() - startNanos, moved);
+	}
+
+	// label: query template, RDF format, ...; null = operation only
+	public static void record(Operation operation, String label, long nanos, long moved){
+		if(!enabled)
+			return;
+		histogram(operation.key).record(nanos);
+		if(label != null)
+			operation.label(label).record(nanos);
+		counter(operation.moved).add(moved);
+	}
+
+	public static void error(Operation operation){
+		if(enabled)
+			counter(operation.errors).increment();
+	}
+
+	/*
+	 * Runs a query or update and records it: latency (also of failures), moved = size of the result,
+	 * template of the query, slow query log.
+	 */
+	public static <T> T query(Operation operation, Object query, Supplier<T> action, ToLongFunction<T> moved){
+		if(!enabled)
+			return action.get();
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = action.get();
+		} catch (RuntimeException | Error e) {
+			error(operation);
+			finished(operation, query, System.nanoTime() - start, 0);
+			throw e;
+		}
+		finished(operation, query, System.nanoTime() - start, moved.applyAsLong(result));
+		return result;
+	}
+
+	private static void finished(Operation operation, Object query, long nanos, long moved){
+		String template = query == null ? null : templates.get(query);
+		record(operation, template, nanos, moved);
+		if(nanos >= slowQueryNanos)
+			slowQuery(operation, template, query, nanos);
+	}
+
+	// built only for slow queries: compiling the algebra costs about as much as parsing
+	private static void slowQuery(Operation operation, String template, Object query, long nanos){
+		String plan;
+		if(query instanceof Query)
+			plan = Algebra.optimize(Algebra.compile((Query) query)).toString();
+		else
+			plan = String.valueOf(query);
+		String entry = String.format("%s slow %s%s %.1f ms%n%s", LocalDateTime.now(), operation.key,
+				template == null ? "" : "[" + template + "]", nanos / 1e6, plan.trim());
+		synchronized(slowQueries){
+			if(slowQueries.size() == SLOW_QUERIES_KEPT)
+				slowQueries.removeFirst();
+			slowQueries.addLast(entry);
+		}
+		slowQueryLog.accept(entry);
+	}
+
+	public static void setSlowQueryThreshold(long time, TimeUnit unit){
+		slowQueryNanos = unit.toNanos(time);
+	}
+
+	public static long getSlowQueryThreshold(TimeUnit unit){
+		return unit.convert(slowQueryNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// where slow queries are written, e.g. a logger; System.err by default
+	public static void setSlowQueryLog(Consumer<String> log){
+		slowQueryLog = log;
+	}
+
+	// the last SLOW_QUERIES_KEPT entries of the slow query log
+	public static List<String> slowQueries(){
+		synchronized(slowQueries){
+			return new ArrayList<>(slowQueries);
+		}
+	}
+
+	// get() first: computeIfAbsent locks the bin even when the value is there (Java 8)
+	public static Histogram histogram(String name){
+		Histogram h = histograms.get(name);
+		return h != null ? h : histograms.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	public static LongAdder counter(String name){
+		LongAdder c = counters.get(name);
+		return c != null ? c : counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	public static void reset(){
+		for(Operation operation : Operation.values())
+			operation.labels.clear();
+		histograms.clear();
+		counters.clear();
+		synchronized(slowQueries){
+			slowQueries.clear();
+		}
+	}
+
+	// ----- export -----
+
+	// sorted by name
+	public static Map<String, Histogram.Snapshot> histograms(){
+		Map<String, Histogram.Snapshot> snapshots = new TreeMap<>();
+		histograms.forEach((name, h) -> snapshots.put(name, h.snapshot()));
+		return snapshots;
+	}
+
+	public static Map<String, Long> counters(){
+		Map<String, Long> values = new TreeMap<>();
+		counters.forEach((name, c) -> values.put(name, c.sum()));
+		return values;
+	}
+
+	public static void export(Exporter exporter){
+		exporter.export(histograms(), counters());
+	}
+
+	// exporter called every period on a daemon thread until the returned future is cancelled
+	public static synchronized ScheduledFuture<?> schedule(Exporter exporter, long period, TimeUnit unit){
+		if(exporters == null)
+			exporters = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "metrics-export");
+				t.setDaemon(true);
+				return t;
+			});
+		return exporters.scheduleAtFixedRate(() -> export(exporter), period, period, unit);
+	}
+
+	// text report: latency percentiles in ms, then counters
+	public static Exporter printer(PrintStream out){
+		return (snapshots, values) -> {
+			snapshots.forEach((name, s) -> out.format("%-36s %8d x  mean %8.3f  p50 %8.3f  p90 %8.3f  p99 %8.3f  max %8.3f ms%n",
+					name, s.count, s.mean() / 1e6, s.valueAt(0.5) / 1e6, s.valueAt(0.9) / 1e6, s.valueAt(0.99) / 1e6, s.max / 1e6));
+			values.forEach((name, v) -> out.format("%-36s %8d%n", name, v));
+		};
+	}
+
+
+	public interface Exporter {
+		// histograms of latencies in nanoseconds and counters, both sorted by name
+		void export(Map<String, Histogram.Snapshot> histograms, Map<String, Long> counters);
+	}
+
+
+	// log-linear histogram of non-negative long values (negative values count as 0)
+	public static class Histogram {
+		static final int SUB_BITS = 5;
+		static final int SUB = 1 << SUB_BITS;
+		// values 0..63 exactly, then SUB buckets for each of the powers of two 2^6..2^62
+		static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value){
+			if(value < 0)
+				value = 0;
+			counts.incrementAndGet(index(value));
+			sum.add(value);
+			long m;
+			while(value > (m = max.get()) && !max.compareAndSet(m, value));
+		}
+
+		static int index(long value){
+			if(value < 2 * SUB)
+				return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB + (int) (value >>> shift);
+		}
+
+		// largest value counted in the bucket
+		static long highest(int index){
+			if(index < 2 * SUB)
+				return index;
+			int shift = index / SUB - 1;
+			long top = index - shift * SUB;
+			return ((top + 1) << shift) - 1;
+		}
+
+		// concurrent records may be partly included
+		public Snapshot snapshot(){
+			long[] copy = new long[BUCKETS];
+			long count = 0;
+			for(int i = 0; i < BUCKETS; i++){
+				copy[i] = counts.get(i);
+				count += copy[i];
+			}
+			return new Snapshot(copy, count, sum.sum(), max.get());
+		}
+
+
+		public static class Snapshot {
+			private final long[] counts;
+			public final long count;
+			public final long sum;
+			public final long max;
+
+			Snapshot(long[] counts, long count, long sum, long max){
+				this.counts = counts;
+				this.count = count;
+				this.sum = sum;
+				this.max = max;
+			}
+
+			public double mean(){
+				return count == 0 ? 0 : (double) sum / count;
+			}
+
+			// value below which the fraction q (0..1) of the recorded values is, within the bucket precision
+			public long valueAt(double q){
+				long rank = Math.max(1, (long) Math.ceil(q * count));
+				long seen = 0;
+				for(int i = 0; i < counts.length; i++){
+					seen += counts[i];
+					if(seen >= rank)
+						return Math.min(highest(i), max);
+				}
+				return max;
+			}
+		}
+	}
+
+
+	// JMX view: latencies in milliseconds by histogram name, counters, slow queries
+	public interface MetricsMXBean {
+		boolean isEnabled();
+		void setEnabled(boolean enabled);
+		long getSlowQueryThresholdMillis();
+		void setSlowQueryThresholdMillis(long millis);
+		Map<String, Long> getCounts();
+		Map<String, Double> getMeanMillis();
+		Map<String, Double> getP99Millis();
+		Map<String, Double> getMaxMillis();
+		Map<String, Long> getCounters();
+		List<String> getSlowQueries();
+		void reset();
+	}
+
+
+	private static class Jmx implements MetricsMXBean {
+		@Override public boolean isEnabled(){ return enabled; }
+		@Override public void setEnabled(boolean on){ Metrics.setEnabled(on); }
+		@Override public long getSlowQueryThresholdMillis(){ return getSlowQueryThreshold(TimeUnit.MILLISECONDS); }
+		@Override public void setSlowQueryThresholdMillis(long millis){ setSlowQueryThreshold(millis, TimeUnit.MILLISECONDS); }
+		@Override public Map<String, Long> getCounters(){ return counters(); }
+		@Override public List<String> getSlowQueries(){ return slowQueries(); }
+		@Override public void reset(){ Metrics.reset(); }
+
+		@Override
+		public Map<String, Long> getCounts(){
+			Map<String, Long> values = new TreeMap<>();
+			histograms().forEach((name, s) -> values.put(name, s.count));
+			return values;
+		}
+
+		@Override
+		public Map<String, Double> getMeanMillis(){
+			Map<String, Double> values = new TreeMap<>();
+			histograms().forEach((name, s) -> values.put(name, s.mean() / 1e6));
+			return values;
+		}
+
+		@Override
+		public Map<String, Double> getP99Millis(){
+			Map<String, Double> values = new TreeMap<>();
+			histograms().forEach((name, s) -> values.put(name, s.valueAt(0.99) / 1e6));
+			return values;
+		}
+
+		@Override
+		public Map<String, Double> getMaxMillis(){
+			Map<String, Double> values = new TreeMap<>();
+			histograms().forEach((name, s) -> values.put(name, s.max / 1e6));
+			return values;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package cz.keiras.rdfExample;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.jena.ontology.OntDocumentManager;
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.ontology.OntProperty;
+import org.apache.jena.ontology.OntResource;
+import org.apache.jena.rdf.model.ModelMaker;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.riot.system.stream.StreamManager;
+
+import cz.zcu.mre.vocab.DS;
+import cz.zcu.mre.vocab.IBD;
+
+
+/*
+ * Precomputed metadata of an ontology, lookups without OntModel.
+ *
+ * RdfExplore.loadOntology() builds an OntModel with RDFS inference, every label/domain/range/type lookup
+ * then goes through the inference graph. The metadata are computed from that OntModel once and kept in
+ * immutable hash maps (URI -> Entry), each lookup is a single map get:
+ * - labels (en, cs) of every resource with a URI
+ * - domain, range of properties
+ * - direct RDF types (listRDFTypes(true))
+ * - ibd:inTimepoint values
+ * Values are the same as the OntModel getters return, incl. their arbitrary choice when there are more
+ * labels/domains/ranges.
+ *
+ * Snapshot: binary file cache/ontology/<SHA-256 of the ontology file>.bin, written at the first load.
+ * The next load of the same file content reads only the snapshot. A changed file has a different hash,
+ * a snapshot of a different FORMAT_VERSION is ignored; in both cases the metadata are computed again.
+ * The snapshot also keeps SHA-256 of every document in the owl:imports closure (as OntDocumentManager resolves
+ * it, "-" when it could not be read); when one of them changes, the metadata are computed again too.
+ * A snapshot is used without network access: local imports (files) are hashed again only when their size or
+ * modification time differs from the recorded one, remote imports (http, ...) only by load(file, true) or when
+ * REMOTE_CHECK_MS passed since their last check (the time of the check is kept in the snapshot).
+ * A truncated or corrupt snapshot is treated as missing.
+ *
+ * usage: OntologyMetadata [ontology file ...] - compares load times with and without the cache
+ * */
+
+
+public class OntologyMetadata {
+	static final String CACHE_DIR = "cache/ontology/";
+	// increase when the snapshot layout or the content of Entry changes
+	static final int FORMAT_VERSION = 3;
+	// hash of an imported document that could not be read
+	static final String UNAVAILABLE = "-";
+	static final int MAGIC = 0x4f4d4554;	// "OMET"
+	// remote imports of a snapshot are checked again at most once per this period, see load(file, refresh)
+	static final long REMOTE_CHECK_MS = TimeUnit.HOURS.toMillis(24);
+
+	private final String sourceHash;
+	// imported ontology URI -> its content when the metadata were computed
+	private final Map<String, Import> imports;
+	// System.currentTimeMillis() of the last check of remote imports
+	private final long importsChecked;
+	private final Map<String, Entry> entries;
+	private final Map<String, List<String>> timepoints;
+	private final boolean fromCache;
+	private final long loadNanos;
+
+	public static void main(String[] in){
+		String[] files = in.length > 0 ? in : new String[] {"example/dasta.owl", "example/ibd.owl"};
+		try {
+			// Jena and reasoner class initialization, keep it out of the first measurement
+			RdfExplore.loadOntology(files[0]).getOntProperty(DS.DATETIME_BIRTH.getURI());
+
+			for(String file : files){
+				// without cache - what RdfExplore did before: OntModel and the lookups of printPropertyInfo
+				long start = System.nanoTime();
+				OntModel ontology = RdfExplore.loadOntology(file);
+				OntProperty prop = ontology.getOntProperty(DS.DATETIME_BIRTH.getURI());
+				if(prop != null){
+					prop.getLabel("en");
+					prop.getDomain();
+					prop.getRange();
+					prop.listRDFTypes(true).toList();
+				}
+				long ontModelNanos = System.nanoTime() - start;
+
+				Files.deleteIfExists(snapshotFile(hash(Paths.get(file))));
+				OntologyMetadata cold = load(Paths.get(file));
+				OntologyMetadata warm = load(Paths.get(file));
+
+				System.out.format("%s: OntModel + lookups %.1f ms, metadata computed + snapshot written %.1f ms, snapshot read %.1f ms (%d entries, %d with timepoints)%n",
+						file, ontModelNanos / 1e6, cold.getLoadNanos() / 1e6, warm.getLoadNanos() / 1e6, warm.size(), warm.timepoints.size());
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	private OntologyMetadata(String sourceHash, Map<String, Import> imports, long importsChecked, Map<String, Entry> entries,
+			Map<String, List<String>> timepoints, boolean fromCache, long loadNanos){
+		this.sourceHash = sourceHash;
+		this.imports = Collections.unmodifiableMap(imports);
+		this.importsChecked = importsChecked;
+		this.entries = Collections.unmodifiableMap(entries);
+		this.timepoints = Collections.unmodifiableMap(timepoints);
+		this.fromCache = fromCache;
+		this.loadNanos = loadNanos;
+	}
+
+	public static OntologyMetadata load(Path file) throws IOException{
+		return load(file, false);
+	}
+
+	/*
+	 * Metadata of the ontology file: read from the snapshot when there is one for the current content of the file
+	 * and its imports, otherwise computed from RdfExplore.loadOntology(file) and written as a snapshot.
+	 * refresh: remote imports are checked now, not only after REMOTE_CHECK_MS.
+	 */
+	public static OntologyMetadata load(Path file, boolean refresh) throws IOException{
+		long start = System.nanoTime();
+		String hash = hash(file);
+		Path snapshot = snapshotFile(hash);
+
+		if(Files.isRegularFile(snapshot)){
+			OntologyMetadata cached;
+			try {
+				cached = read(snapshot, hash, start);
+			} catch (IOException | BufferUnderflowException e) {
+				// truncated or corrupt (e.g. an interrupted copy of the cache), written again below
+				cached = null;
+			}
+			if(cached != null){
+				long now = System.currentTimeMillis();
+				boolean checkRemote = refresh || now - cached.importsChecked > REMOTE_CHECK_MS;
+				Map<String, Import> current = currentImports(cached.imports, checkRemote);
+				if(current != null){
+					// new time of the check or new stamps of local files with the same content
+					if(checkRemote || !current.equals(cached.imports))
+						write(new OntologyMetadata(hash, current, checkRemote ? now : cached.importsChecked, cached.entries,
+								cached.timepoints, true, 0), snapshot);
+					return cached;
+				}
+			}
+		}
+
+		OntologyMetadata computed = compute(RdfExplore.loadOntology(file.toString()), hash, start);
+		write(computed, snapshot);
+		return computed;
+	}
+
+	// metadata of an already loaded ontology, nothing is persisted
+	public static OntologyMetadata of(OntModel ontology){
+		return compute(ontology, null, System.nanoTime());
+	}
+
+	// hash == null: not persisted, imports are not hashed
+	private static OntologyMetadata compute(OntModel ontology, String hash, long start){
+		Map<String, Import> imports = hash != null ? imports(ontology) : new LinkedHashMap<>();
+
+		Map<String, Entry> entries = new HashMap<>();
+		// subjects of the asserted statements only - inference adds statements about every RDFS/OWL term
+		for(Resource r : ontology.getBaseModel().listSubjects().toList()){
+			if(!r.isURIResource())
+				continue;
+			OntResource resource = ontology.getOntResource(r);
+			OntProperty property = ontology.getOntProperty(r.getURI());
+			entries.put(r.getURI(), new Entry(
+					resource.getLabel("en"),
+					resource.getLabel("cs"),
+					property == null ? null : string(property.getDomain()),
+					property == null ? null : string(property.getRange()),
+					resource.listRDFTypes(true).toList().stream().map(Resource::toString).collect(Collectors.toList())));
+		}
+
+		Map<String, List<String>> timepoints = new HashMap<>();
+		for(Statement s : ontology.listStatements(null, IBD.IN_TIMEPOINT, (RDFNode) null).toList())
+			timepoints.computeIfAbsent(s.getSubject().toString(), k -> new ArrayList<>()).add(s.getObject().toString());
+		timepoints.replaceAll((k, v) -> Collections.unmodifiableList(v));
+
+		return new OntologyMetadata(hash, imports, System.currentTimeMillis(), entries, timepoints, false, System.nanoTime() - start);
+	}
+
+	private static String string(RDFNode node){
+		return node == null ? null : node.toString();
+	}
+
+	// ----- lookups -----
+
+	public Entry get(String uri){
+		return entries.get(uri);
+	}
+
+	public Entry get(Resource resource){
+		return entries.get(resource.getURI());
+	}
+
+	public String label(Resource resource, String lang){
+		Entry e = get(resource);
+		return e == null ? null : "cs".equals(lang) ? e.labelCs : "en".equals(lang) ? e.labelEn : null;
+	}
+
+	public String domain(Property property){
+		Entry e = get(property);
+		return e == null ? null : e.domain;
+	}
+
+	public String range(Property property){
+		Entry e = get(property);
+		return e == null ? null : e.range;
+	}
+
+	public List<String> types(Resource resource){
+		Entry e = get(resource);
+		return e == null ? Collections.emptyList() : e.types;
+	}
+
+	// URIs of ibd:inTimepoint values of the resource
+	public List<String> timepoints(Resource resource){
+		return timepoints.getOrDefault(resource.getURI(), Collections.emptyList());
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	public boolean isFromCache(){
+		return fromCache;
+	}
+
+	public long getLoadNanos(){
+		return loadNanos;
+	}
+
+	// ----- snapshot -----
+
+	static Path snapshotFile(String hash){
+		return Paths.get(CACHE_DIR, hash + ".bin");
+	}
+
+	static String hash(Path file) throws IOException{
+		try(InputStream is = Files.newInputStream(file)){
+			return hash(is);
+		}
+	}
+
+	// location of an imported ontology as OntModel.read resolves it (alt entries of OntDocumentManager)
+	static String importLocation(String uri){
+		return OntDocumentManager.getInstance().doAltURLMapping(uri);
+	}
+
+	// the file of a location without a scheme or with file:, null for remote locations
+	static Path localFile(String location){
+		try {
+			if(location.startsWith("file:"))
+				return Paths.get(URI.create(location));
+			if(location.matches("^[a-zA-Z][a-zA-Z0-9+.-]+:.*"))
+				return null;
+			return Paths.get(location);
+		} catch (IllegalArgumentException | FileSystemNotFoundException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * An imported document is read once per JVM: OntDocumentManager and the import ModelMaker of every OntModelSpec
+	 * keep it by URI, the next OntModel.read would get the previous content. Drops it from the document manager
+	 * and from the specs used in this project (Reasoning.Profile, RdfExplore.loadOntology).
+	 */
+	static void forgetImport(String uri){
+		OntDocumentManager.getInstance().getFileManager().removeCacheModel(uri);
+		for(OntModelSpec spec : new OntModelSpec[] {OntModelSpec.OWL_MEM, OntModelSpec.OWL_MEM_RDFS_INF, OntModelSpec.OWL_MEM_MICRO_RULE_INF}){
+			ModelMaker maker = spec.getImportModelMaker();
+			if(maker.hasModel(uri))
+				maker.removeModel(uri);
+		}
+	}
+
+	// content of an imported ontology; "-" when it could not be read
+	static String hashImport(String uri){
+		try(InputStream is = StreamManager.get().open(importLocation(uri))){
+			return is == null ? UNAVAILABLE : hash(is);
+		} catch (IOException | RuntimeException e) {
+			// unknown host, HTTP error, ...; OntModel skips such an import as well
+			return UNAVAILABLE;
+		}
+	}
+
+	// current content of the owl:imports closure of the ontology (also the cache key of Reasoning MATERIALIZED)
+	static Map<String, Import> imports(OntModel ontology){
+		Map<String, Import> imports = new LinkedHashMap<>();
+		for(String uri : ontology.listImportedOntologyURIs(true))
+			imports.put(uri, Import.of(uri));
+		return imports;
+	}
+
+	/*
+	 * Recorded imports with the stamps of local files now, null when the content of one of them changed.
+	 * Remote imports are taken as recorded unless checkRemote. A change also drops the recorded imports from the
+	 * caches of Jena, see forgetImport.
+	 */
+	static Map<String, Import> currentImports(Map<String, Import> recorded, boolean checkRemote){
+		Map<String, Import> current = new LinkedHashMap<>();
+		for(Map.Entry<String, Import> e : recorded.entrySet()){
+			Import before = e.getValue();
+			Path local = localFile(importLocation(e.getKey()));
+			Import now;
+			if(local != null)
+				now = before.sameStamp(local) ? before : Import.of(e.getKey());
+			else
+				now = checkRemote ? Import.of(e.getKey()) : before;
+			if(!now.hash.equals(before.hash)){
+				recorded.keySet().forEach(OntologyMetadata::forgetImport);
+				return null;
+			}
+			current.put(e.getKey(), now);
+		}
+		return current;
+	}
+
+	private static String hash(InputStream is) throws IOException{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[1 << 16];
+			for(int n; (n = is.read(buffer)) > 0; )
+				digest.update(buffer, 0, n);
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest())
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * layout: MAGIC, FORMAT_VERSION, source hash, imports checked (long), imports (uri, hash, size, modified),
+	 * entries (uri, labelEn, labelCs, domain, range, types), timepoints (uri, values);
+	 * a string is its UTF-8 length (int, -1 = null) and bytes, a list its size and items
+	 */
+	private static void write(OntologyMetadata metadata, Path snapshot) throws IOException{
+		Files.createDirectories(snapshot.getParent());
+		// written under a temporary name and moved, a concurrent reader never sees a partial snapshot
+		Path tmp = Files.createTempFile(snapshot.getParent(), "snapshot", ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))){
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			writeString(out, metadata.sourceHash);
+			out.writeLong(metadata.importsChecked);
+
+			out.writeInt(metadata.imports.size());
+			for(Map.Entry<String, Import> e : metadata.imports.entrySet()){
+				writeString(out, e.getKey());
+				writeString(out, e.getValue().hash);
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().modified);
+			}
+
+			out.writeInt(metadata.entries.size());
+			for(Map.Entry<String, Entry> e : metadata.entries.entrySet()){
+				writeString(out, e.getKey());
+				writeString(out, e.getValue().labelEn);
+				writeString(out, e.getValue().labelCs);
+				writeString(out, e.getValue().domain);
+				writeString(out, e.getValue().range);
+				writeList(out, e.getValue().types);
+			}
+
+			out.writeInt(metadata.timepoints.size());
+			for(Map.Entry<String, List<String>> e : metadata.timepoints.entrySet()){
+				writeString(out, e.getKey());
+				writeList(out, e.getValue());
+			}
+		}
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * null when the snapshot is of another version or another file; the whole file is read into a buffer,
+	 * a truncated snapshot ends with BufferUnderflowException, impossible sizes with IOException
+	 */
+	private static OntologyMetadata read(Path snapshot, String hash, long start) throws IOException{
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+		if(in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION || !hash.equals(readString(in)))
+			return null;
+		long importsChecked = in.getLong();
+
+		int size = readSize(in);
+		Map<String, Import> imports = new LinkedHashMap<>();
+		for(int i = 0; i < size; i++)
+			imports.put(readString(in), new Import(readString(in), in.getLong(), in.getLong()));
+
+		size = readSize(in);
+		Map<String, Entry> entries = new HashMap<>(size * 4 / 3 + 1);
+		for(int i = 0; i < size; i++)
+			entries.put(readString(in), new Entry(readString(in), readString(in), readString(in), readString(in), readList(in)));
+
+		size = readSize(in);
+		Map<String, List<String>> timepoints = new HashMap<>(size * 4 / 3 + 1);
+		for(int i = 0; i < size; i++)
+			timepoints.put(readString(in), readList(in));
+
+		return new OntologyMetadata(hash, imports, importsChecked, entries, timepoints, true, System.nanoTime() - start);
+	}
+
+	// no 64 kB limit of writeUTF
+	private static void writeString(DataOutputStream out, String value) throws IOException{
+		if(value == null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException{
+		int length = in.getInt();
+		if(length == -1)
+			return null;
+		if(length < 0 || length > in.remaining())
+			throw new IOException("corrupt snapshot: string of " + length + " bytes");
+		String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	// every item takes at least 4 bytes
+	private static int readSize(ByteBuffer in) throws IOException{
+		int size = in.getInt();
+		if(size < 0 || size > in.remaining() / 4)
+			throw new IOException("corrupt snapshot: " + size + " items");
+		return size;
+	}
+
+	private static void writeList(DataOutputStream out, List<String> values) throws IOException{
+		out.writeInt(values.size());
+		for(String v : values)
+			writeString(out, v);
+	}
+
+	private static List<String> readList(ByteBuffer in) throws IOException{
+		int size = readSize(in);
+		if(size == 0)
+			return Collections.emptyList();
+		List<String> values = new ArrayList<>(size);
+		for(int i = 0; i < size; i++)
+			values.add(readString(in));
+		return Collections.unmodifiableList(values);
+	}
+
+
+	// content of an imported document; size and modification time of a local file, -1 otherwise
+	static class Import {
+		final String hash;
+		final long size;
+		final long modified;
+
+		Import(String hash, long size, long modified){
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		// stamp is read before the content, a file changed meanwhile is hashed again next time
+		static Import of(String uri){
+			Path local = localFile(importLocation(uri));
+			long size = -1, modified = -1;
+			if(local != null){
+				try {
+					size = Files.size(local);
+					modified = Files.getLastModifiedTime(local).toMillis();
+				} catch (IOException e) {
+					// missing file, hashImport gives UNAVAILABLE
+				}
+			}
+			return new Import(hashImport(uri), size, modified);
+		}
+
+		boolean sameStamp(Path file){
+			try {
+				return size == Files.size(file) && modified == Files.getLastModifiedTime(file).toMillis();
+			} catch (IOException e) {
+				return size == -1 && modified == -1;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Import))
+				return false;
+			Import other = (Import) o;
+			return hash.equals(other.hash) && size == other.size && modified == other.modified;
+		}
+
+		@Override
+		public int hashCode(){
+			return hash.hashCode() * 31 + Long.hashCode(size ^ modified);
+		}
+	}
+
+
+	public static class Entry {
+		public final String labelEn;
+		public final String labelCs;
+		public final String domain;		// properties only
+		public final String range;		// properties only
+		public final List<String> types;
+
+		Entry(String labelEn, String labelCs, String domain, String range, List<String> types){
+			this.labelEn = labelEn;
+			this.labelCs = labelCs;
+			this.domain = domain;
+			this.range = range;
+			this.types = types.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(types);
+		}
+	}
+}
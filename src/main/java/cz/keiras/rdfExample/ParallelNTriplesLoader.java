@@ -0,0 +1,380 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.RDFParserBuilder;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.lang.StreamRDFCounting;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+
+/*
+ * Parallel loading of RDF files: chunked N-Triples/N-Quads and many files at once.
+ *
+ * A RIOT parser runs on one thread. N-Triples and N-Quads are line-based, so a file can be cut at line ends
+ * and the pieces parsed independently:
+ * - the file is split into chunks of ~chunkSize bytes, each boundary moved forward to the next '\n'
+ * - each chunk is memory-mapped (FileChannel.map, no copy to the heap) and parsed on a pool thread
+ * - blank node labels are scoped by file, not by chunk: all chunks of a file use the same
+ *   LabelToNode.createScopeByDocumentHash(seed), _:b1 in two chunks is the same node, in two files two nodes
+ * - parsed terms go through a shared dictionary (ConcurrentHashMap), equal IRIs and literals from different
+ *   chunks end up as one Node instance in the graph
+ * - chunks are passed to the destination in file order from the calling thread, so the destination
+ *   (GraphMem, CompactGraph.Builder, a writer) does not need to be thread-safe
+ * Other languages (Turtle, RDF/XML, ...) are parsed as a whole, in parallel with the other files and chunks.
+ *
+ * At most 2 * threads chunks are parsed or waiting to be merged. For N-Triples and N-Quads the buffered triples
+ * are bounded by the chunk size, not by the file size; a file of another language is one chunk and all its
+ * triples are buffered until it is merged. With intern, the dictionary holds every distinct term of the load
+ * until parse() returns (terms the destination graph keeps anyway, a writer does not).
+ *
+ * usage: ParallelNTriplesLoader [synthetic triples] [threads] - sequential and parallel load times of a
+ *        synthetic N-Triples file (generated into out/ when missing) and of the example files
+ * */
+
+
+public class ParallelNTriplesLoader {
+	static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+	static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	// bytes read at a time when looking for the end of a line
+	static final int BOUNDARY_SCAN = 1 << 12;
+
+	public static void main(String[] in){
+		long syntheticTriples = in.length > 0 ? Long.parseLong(in[0]) : 1_000_000;
+		int threads = in.length > 1 ? Integer.parseInt(in[1]) : DEFAULT_THREADS;
+		Path synthetic = Paths.get("out/synthetic-" + syntheticTriples + ".nt");
+
+		try {
+			if(!Files.exists(synthetic))
+				SyntheticPatientGenerator.main(new String[]{String.valueOf(syntheticTriples), synthetic.toString()});
+			System.out.format("%s: %.1f MB, %d threads, %d MB chunks%n",
+					synthetic, Files.size(synthetic) / 1048576.0, threads, DEFAULT_CHUNK_SIZE >> 20);
+
+			for(int round = 0; round < 3; round++){
+				long start = System.nanoTime();
+				Graph sequential = GraphFactory.createDefaultGraph();
+				RDFParser.source(synthetic).forceLang(Lang.NTRIPLES).parse(sequential);
+				long sequentialNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				Graph parallel = GraphFactory.createDefaultGraph();
+				parse(Collections.singletonMap(synthetic, Lang.NTRIPLES), StreamRDFLib.graph(parallel), threads, DEFAULT_CHUNK_SIZE, true);
+				long parallelNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				CompactGraph compact = loadCompact(Collections.singletonMap(synthetic, Lang.NTRIPLES));
+				long compactNanos = System.nanoTime() - start;
+
+				System.out.format("round %d: sequential %d triples %8.1f ms, parallel %d triples %8.1f ms (%.1fx), parallel CompactGraph %d triples %8.1f ms%n",
+						round, sequential.size(), sequentialNanos / 1e6, parallel.size(), parallelNanos / 1e6,
+						(double) sequentialNanos / parallelNanos, compact.size(), compactNanos / 1e6);
+			}
+
+			// several files of different languages at once; small chunks so that dataset.rdf is split as well
+			Map<Path, Lang> files = new LinkedHashMap<>();
+			files.put(Paths.get("example/dataset.rdf"), Lang.NTRIPLES);
+			files.put(Paths.get("example/dataset2.ttl"), Lang.TURTLE);
+			Graph sequential = GraphFactory.createDefaultGraph();
+			for(Map.Entry<Path, Lang> e : files.entrySet())
+				RDFParser.source(e.getKey()).forceLang(e.getValue()).parse(sequential);
+			Graph parallel = GraphFactory.createDefaultGraph();
+			parse(files, StreamRDFLib.graph(parallel), threads, 16 << 10, true);
+			System.out.format("example files in 16 kB chunks: %d triples, isomorphic with sequential parse: %b%n",
+					parallel.size(), parallel.isIsomorphicWith(sequential));
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// ----- load -----
+
+	// files in the given order, each with its language (the extension of dataset.rdf does not match its content)
+	public static Graph loadGraph(Map<Path, Lang> files) throws IOException{
+		Graph graph = GraphFactory.createDefaultGraph();
+		parse(files, StreamRDFLib.graph(graph));
+		return graph;
+	}
+
+	public static DatasetGraph loadDataset(Map<Path, Lang> files) throws IOException{
+		DatasetGraph dataset = DatasetGraphFactory.create();
+		parse(files, StreamRDFLib.dataset(dataset));
+		return dataset;
+	}
+
+	// CompactGraph.Builder has its own dictionary, the shared one would only be an extra lookup
+	public static CompactGraph loadCompact(Map<Path, Lang> files) throws IOException{
+		CompactGraph.Builder builder = new CompactGraph.Builder();
+		parse(files, builder, DEFAULT_THREADS, DEFAULT_CHUNK_SIZE, false);
+		return builder.build();
+	}
+
+	public static void parse(Map<Path, Lang> files, StreamRDF destination) throws IOException{
+		parse(files, destination, DEFAULT_THREADS, DEFAULT_CHUNK_SIZE, true);
+	}
+
+	/*
+	 * Parses the files on threads, destination gets start(), prefixes, triples/quads in file order and finish()
+	 * from the calling thread. intern: terms of all chunks go through a shared dictionary.
+	 * A syntax error is reported with the file and byte range of its chunk, see Chunk.toString().
+	 * With one thread there is nothing to overlap: the chunks are parsed straight into destination, no buffering.
+	 */
+	public static void parse(Map<Path, Lang> files, StreamRDF destination, int threads, int chunkSize, boolean intern) throws IOException{
+		long start = System.nanoTime();
+		StreamRDFCounting counting = StreamRDFLib.count(destination);
+		destination = counting;
+		List<Chunk> chunks = new ArrayList<>();
+		for(Map.Entry<Path, Lang> e : files.entrySet())
+			chunks.addAll(split(e.getKey(), e.getValue(), chunkSize));
+		if(threads <= 1){
+			StreamRDF shield = new StreamingConverter.StreamRDFCloseShield(destination);
+			destination.start();
+			for(Chunk chunk : chunks)
+				chunk.parse(shield);
+			destination.finish();
+			Metrics.record(Metrics.Operation.PARSE, start, counting.count());
+			return;
+		}
+		Map<Node, Node> dictionary = intern ? new ConcurrentHashMap<>() : null;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, daemon("rdf-parse"));
+		try {
+			Deque<Future<Parsed>> window = new ArrayDeque<>();
+			int next = 0;
+			destination.start();
+			while(next < chunks.size() || !window.isEmpty()){
+				while(next < chunks.size() && window.size() < 2 * threads){
+					Chunk chunk = chunks.get(next++);
+					window.add(pool.submit(() -> {
+						Parsed parsed = new Parsed(dictionary);
+						chunk.parse(parsed);
+						return parsed;
+					}));
+				}
+				window.poll().get().sendTo(destination);
+			}
+			destination.finish();
+			Metrics.record(Metrics.Operation.PARSE, start, counting.count());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("parsing interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// ----- split -----
+
+	static boolean isLineBased(Lang lang){
+		return Lang.NTRIPLES.equals(lang) || Lang.NQUADS.equals(lang);
+	}
+
+	// chunks of a line-based file, each starting at the beginning of a line; one chunk for other languages
+	static List<Chunk> split(Path file, Lang lang, int chunkSize) throws IOException{
+		UUID scope = UUID.randomUUID();
+		List<Chunk> chunks = new ArrayList<>();
+		if(!isLineBased(lang)){
+			chunks.add(new Chunk(file, lang, scope, 0, -1));
+			return chunks;
+		}
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			long size = channel.size();
+			ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN);
+			long start = 0;
+			while(start < size){
+				long end = start + chunkSize >= size ? size : lineEnd(channel, start + chunkSize, scan);
+				chunks.add(new Chunk(file, lang, scope, start, end));
+				start = end;
+			}
+		}
+		return chunks;
+	}
+
+	// position after the first '\n' at or after position, or the file size
+	private static long lineEnd(FileChannel channel, long position, ByteBuffer scan) throws IOException{
+		while(true){
+			scan.clear();
+			int read = channel.read(scan, position);
+			if(read < 0)
+				return channel.size();
+			for(int i = 0; i < read; i++)
+				if(scan.get(i) == '\n')
+					return position + i + 1;
+			position += read;
+		}
+	}
+
+	private static ThreadFactory daemon(String name){
+		AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+
+	// byte range [start, end) of a file, end -1 = the whole file
+	static class Chunk {
+		final Path file;
+		final Lang lang;
+		final UUID scope;
+		final long start;
+		final long end;
+
+		Chunk(Path file, Lang lang, UUID scope, long start, long end){
+			this.file = file;
+			this.lang = lang;
+			this.scope = scope;
+			this.start = start;
+			this.end = end;
+		}
+
+		void parse(StreamRDF destination) throws IOException{
+			RDFParserBuilder builder = end < 0 ? RDFParser.source(file) : RDFParser.source(new ByteBufferInputStream(map()));
+			try {
+				// same seed -> same blank node for the same label in every chunk of the file
+				builder.forceLang(lang).labelToNode(LabelToNode.createScopeByDocumentHash(scope)).parse(destination);
+			} catch (RiotException e) {
+				// line numbers of the parser are relative to the chunk
+				throw new RiotException(this + ": " + e.getMessage(), e);
+			}
+		}
+
+		private ByteBuffer map() throws IOException{
+			try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+				// the mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			}
+		}
+
+		@Override
+		public String toString(){
+			return end < 0 ? file.toString() : String.format("%s [bytes %d-%d)", file, start, end);
+		}
+	}
+
+
+	// triples/quads of a chunk in the parsed order, terms replaced by the dictionary ones
+	static class Parsed extends StreamRDFBase {
+		private final Map<Node, Node> dictionary;
+		private final Map<String, String> prefixes = new LinkedHashMap<>();
+		// Triple or Quad
+		private final List<Object> statements = new ArrayList<>();
+
+		Parsed(Map<Node, Node> dictionary){
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public void triple(Triple triple){
+			if(dictionary != null)
+				triple = Triple.create(intern(triple.getSubject()), intern(triple.getPredicate()), intern(triple.getObject()));
+			statements.add(triple);
+		}
+
+		@Override
+		public void quad(Quad quad){
+			if(dictionary != null)
+				quad = Quad.create(intern(quad.getGraph()), intern(quad.getSubject()), intern(quad.getPredicate()), intern(quad.getObject()));
+			statements.add(quad);
+		}
+
+		@Override
+		public void prefix(String prefix, String iri){
+			prefixes.put(prefix, iri);
+		}
+
+		private Node intern(Node node){
+			// get() does not lock, most terms are already there
+			Node known = dictionary.get(node);
+			if(known != null)
+				return known;
+			known = dictionary.putIfAbsent(node, node);
+			return known != null ? known : node;
+		}
+
+		void sendTo(StreamRDF destination){
+			prefixes.forEach(destination::prefix);
+			for(Object statement : statements){
+				if(statement instanceof Triple)
+					destination.triple((Triple) statement);
+				else
+					destination.quad((Quad) statement);
+			}
+		}
+	}
+
+
+	// reads a (memory-mapped) buffer; the N-Triples parser buffers and decodes UTF-8 itself
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(){
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len){
+			if(len == 0)
+				return 0;
+			if(!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available(){
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package cz.keiras.rdfExample;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+
+
+/*
+ * Patients of a model ordered by birth date.
+ *
+ * Birth date of every patient is read and parsed exactly once, then the index is sorted as
+ * primitive longs (decorate-sort-undecorate):
+ *   key = birth epoch day << 32 | (MAX_INT - position of the patient)
+ * so sorting does no graph lookups nor date parsing (the old comparator in printPatientsByAge did both
+ * twice per comparison). Positions are inverted, so that patients born on the same day keep their
+ * original order when the index is read from the youngest.
+ *
+ * Age ranges are answered by binary search over the sorted epoch days.
+ * Patients without a birth date or with an invalid one are left out of the index and reported
+ * together in getErrors().
+ * */
+
+
+public class PatientCohortIndex {
+	static final double DAYS_PER_YEAR = 365.25;
+
+	// sorted ascending = from the oldest patient
+	private final long[] birthEpochDays;
+	private final Resource[] patients;
+	private final List<String> errors;
+
+	private PatientCohortIndex(long[] birthEpochDays, Resource[] patients, List<String> errors){
+		this.birthEpochDays = birthEpochDays;
+		this.patients = patients;
+		this.errors = errors;
+	}
+
+	// all resources of type ds:Patient with their ds:datetimeBirth
+	public static PatientCohortIndex build(Model model){
+		return build(model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList());
+	}
+
+	public static PatientCohortIndex build(List<Resource> candidates){
+		List<String> errors = new ArrayList<>();
+		Resource[] found = new Resource[candidates.size()];
+		long[] keys = new long[candidates.size()];
+		int n = 0;
+
+		for(Resource p : candidates){
+			Statement birth = p.getProperty(RdfExplore.dateTimeBirth);
+			if(birth == null){
+				errors.add(String.format("%s: missing %s", p, RdfExplore.dateTimeBirth.getLocalName()));
+				continue;
+			}
+			RDFNode value = birth.getObject();
+			String lexical = value.isLiteral() ? value.asLiteral().getLexicalForm() : value.toString();
+			try {
+				long epochDay = LocalDate.parse(lexical, DateTimeFormatter.ISO_LOCAL_DATE).toEpochDay();
+				found[n] = p;
+				keys[n] = (epochDay << 32) | (Integer.MAX_VALUE - n);
+				n++;
+			} catch (DateTimeParseException e) {
+				errors.add(String.format("%s: DateTimeParseException: %s", p, lexical));
+			}
+		}
+
+		keys = Arrays.copyOf(keys, n);
+		Arrays.sort(keys);
+
+		long[] days = new long[n];
+		Resource[] sorted = new Resource[n];
+		for(int i = 0; i < n; i++){
+			days[i] = keys[i] >> 32;
+			sorted[i] = found[Integer.MAX_VALUE - (int) keys[i]];
+		}
+
+		return new PatientCohortIndex(days, sorted, Collections.unmodifiableList(errors));
+	}
+
+	public int size(){
+		return patients.length;
+	}
+
+	// patients which could not be indexed, one message per patient
+	public List<String> getErrors(){
+		return errors;
+	}
+
+	// i-th patient from the youngest
+	public Resource youngest(int i){
+		return patients[patients.length - 1 - i];
+	}
+
+	public long birthEpochDayOfYoungest(int i){
+		return birthEpochDays[patients.length - 1 - i];
+	}
+
+	// all patients, from the youngest (order used by RdfExplore.printPatientsByAge)
+	public List<Resource> byAge(){
+		return new AbstractList<Resource>(){
+			@Override
+			public Resource get(int index){
+				return youngest(index);
+			}
+
+			@Override
+			public int size(){
+				return patients.length;
+			}
+		};
+	}
+
+	/*
+	 * Patients with minYears <= age <= maxYears at the given day, from the youngest.
+	 * Age is counted as in age(): days / 365.25.
+	 */
+	public List<Resource> agedBetween(double minYears, double maxYears, LocalDate today){
+		long todayDay = today.toEpochDay();
+		// age >= minYears <=> birth <= today - minYears * 365.25 ; age <= maxYears <=> birth >= today - maxYears * 365.25
+		long bornAfter = (long) Math.ceil(todayDay - maxYears * DAYS_PER_YEAR);
+		long bornBefore = (long) Math.floor(todayDay - minYears * DAYS_PER_YEAR);
+		if(bornAfter > bornBefore)
+			return Collections.emptyList();
+
+		int from = lowerBound(bornAfter);
+		int to = lowerBound(bornBefore + 1);
+
+		List<Resource> result = new ArrayList<>(to - from);
+		for(int i = to - 1; i >= from; i--)
+			result.add(patients[i]);
+		return result;
+	}
+
+	public static double age(long birthEpochDay, LocalDate today){
+		return (today.toEpochDay() - birthEpochDay) / DAYS_PER_YEAR;
+	}
+
+	// first position with birth day >= day
+	private int lowerBound(long day){
+		int lo = 0, hi = birthEpochDays.length;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(birthEpochDays[mid] < day)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,509 @@
+package cz.keiras.rdfExample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpDatasetNames;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpPath;
+import org.apache.jena.sparql.algebra.op.OpQuadPattern;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.op.OpTriple;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.ResultBinding;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.modify.request.UpdateData;
+import org.apache.jena.sparql.modify.request.UpdateDeleteWhere;
+import org.apache.jena.sparql.modify.request.UpdateModify;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateRequest;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+
+
+/*
+ * Client-side cache of SELECT and CONSTRUCT results, see Fuseki.useCache().
+ *
+ * - key: query type + FROM / FROM NAMED graphs + SPARQL algebra of the query (+ CONSTRUCT template), so prefixes,
+ *   whitespace and formatting of the query text do not matter; ASK and DESCRIBE are not cached
+ * - values are immutable and compact: SELECT rows as one array of terms (each distinct term stored once),
+ *   CONSTRUCT results as a CompactGraph; every call gets its own list of solutions, CONSTRUCT models are read-only
+ * - bounded by the estimated heap of the values, the least recently used entries are evicted
+ * - invalidation: every entry remembers the predicates and rdf:type classes of its triple patterns, an update
+ *   removes the entries whose patterns may match a deleted or inserted triple. Variables in predicates,
+ *   property paths, SERVICE and operations without templates (CLEAR, DROP, LOAD, ...) invalidate everything.
+ *   Loaded data (Graph Store Protocol) invalidates by the predicates and classes of its triples.
+ *   A result computed while an update was applied is not stored.
+ * - Fuseki invalidates it by updates of its dataset: fusekiUpdate, and any SparqlClient writing to the same service
+ *   (AsyncFuseki, UpdateBatcher, ChangeTracker), see SparqlClient.WriteListener
+ * - optional maximal age, for data changed by other processes
+ *
+ * usage: QueryResultCache [rounds] - repeated Fuseki.main queries against the embedded server with and
+ *        without the cache, then the effect of moveTherapyFromIbdToPatient
+ * */
+
+
+public class QueryResultCache {
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private final long maxBytes;
+	private final long maxAgeNanos;		// 0 = entries do not expire
+
+	// access order, the eldest entry is the least recently used; all state guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+	// increased by every invalidation, results computed across it are not stored
+	private long generation = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long expirations = 0;
+
+	public static void main(String[] arg){
+		int rounds = arg.length > 0 ? Integer.parseInt(arg[0]) : 200;
+		String root = "http://mre.zcu.cz/id/bd083f7637190a544a0ff4c1474934a23b4fd11b";
+		FusekiServer server = EmbeddedFuseki.start(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME, EmbeddedFuseki.exampleDataset());
+		try {
+			Fuseki.useRemote(EmbeddedFuseki.serviceUrl(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME));
+			for(QueryResultCache cache : new QueryResultCache[] {null, new QueryResultCache(DEFAULT_MAX_BYTES, 0)}){
+				Fuseki.useCache(cache);
+				String label = cache == null ? "no cache " : "cache    ";
+				EmbeddedFuseki.measure(label + "construct depth 2", rounds, () -> Fuseki.fusekiConstruct(Fuseki.getConstructQueryDepth2(root)));
+				EmbeddedFuseki.measure(label + "select therapy/ibd", rounds, () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)));
+				EmbeddedFuseki.measure(label + "select therapy/patient", rounds, () -> Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT)));
+			}
+
+			// moves ibd:hasTherapy triples - both selects are invalidated, the depth-2 construct (?p1 ?p2) as well
+			Fuseki.fusekiUpdate(Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT));
+			System.out.println(Fuseki.cache().getStats());
+			System.out.format("therapies on patients after the update: %d%n", Fuseki.fusekiSelect(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT)).size());
+			System.out.println(Fuseki.cache().getStats());
+		} finally {
+			Fuseki.useCache(null);
+			server.stop();
+		}
+	}
+
+	public QueryResultCache(){
+		this(DEFAULT_MAX_BYTES, 0);
+	}
+
+	/*
+	 * maxBytes		bound of the estimated heap of all cached results
+	 * maxAgeMs		entries older than that are not used, 0 = no limit
+	 */
+	public QueryResultCache(long maxBytes, long maxAgeMs){
+		this.maxBytes = maxBytes;
+		this.maxAgeNanos = maxAgeMs * 1_000_000;
+	}
+
+	// ----- lookups -----
+
+	// cached rows of the query, or the rows of execute(query) which are cached
+	public List<QuerySolution> select(Query query, Function<Query, List<QuerySolution>> execute){
+		if(!query.isSelectType())
+			return execute.apply(query);
+		Op op = Algebra.compile(query);
+		String key = key("SELECT", query, op);
+		Rows rows = (Rows) get(key);
+		if(rows == null){
+			long start = generation();
+			rows = new Rows(query.getResultVars(), execute.apply(query));
+			put(key, rows, rows.bytes, Footprint.ofQuery(op), start);
+		}
+		return rows.solutions();
+	}
+
+	// cached result graph of the query as a read-only model, or the result of execute(query) which is cached
+	public Model construct(Query query, Function<Query, Model> execute){
+		if(!query.isConstructType())
+			return execute.apply(query);
+		Op op = Algebra.compile(query);
+		String key = key("CONSTRUCT " + query.getConstructTemplate().getTriples(), query, op);
+		CompactGraph graph = (CompactGraph) get(key);
+		if(graph == null){
+			long start = generation();
+			Model model = execute.apply(query);
+			graph = CompactGraph.copyOf(model.getGraph());
+			graph.getPrefixMapping().setNsPrefixes(model.getNsPrefixMap());
+			put(key, graph, graph.estimatedBytes(), Footprint.ofQuery(op), start);
+		}
+		return ModelFactory.createModelForGraph(graph);
+	}
+
+	// the algebra does not contain the dataset of the query (FROM, FROM NAMED)
+	private static String key(String type, Query query, Op op){
+		return type + " FROM " + query.getGraphURIs() + " FROM NAMED " + query.getNamedGraphURIs() + " " + op;
+	}
+
+	private synchronized Object get(String key){
+		Entry e = entries.get(key);
+		if(e != null && maxAgeNanos > 0 && System.nanoTime() - e.created > maxAgeNanos){
+			remove(key);
+			expirations++;
+			e = null;
+		}
+		if(e == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.value;
+	}
+
+	private synchronized long generation(){
+		return generation;
+	}
+
+	private synchronized void put(String key, Object value, long size, Footprint footprint, long startGeneration){
+		// an update was applied while the query ran, the result may be older than the update
+		if(startGeneration != generation || size > maxBytes)
+			return;
+		Entry previous = entries.put(key, new Entry(value, size, footprint, System.nanoTime()));
+		if(previous != null)
+			bytes -= previous.bytes;
+		bytes += size;
+
+		Iterator<Entry> lru = entries.values().iterator();
+		while(bytes > maxBytes && lru.hasNext()){
+			bytes -= lru.next().bytes;
+			lru.remove();
+			evictions++;
+		}
+	}
+
+	private void remove(String key){
+		Entry e = entries.remove(key);
+		if(e != null)
+			bytes -= e.bytes;
+	}
+
+	// ----- invalidation -----
+
+	// removes entries which may be affected by the update, call it after the update has been applied
+	public void invalidate(UpdateRequest request){
+		invalidate(Footprint.ofUpdate(request));
+	}
+
+	// removes entries which may be affected by triples added to the service, e.g. SparqlClient.load
+	public void invalidate(Graph added){
+		invalidate(Footprint.ofTriples(added));
+	}
+
+	private void invalidate(Footprint changes){
+		synchronized(this){
+			generation++;
+			Iterator<Entry> it = entries.values().iterator();
+			while(it.hasNext()){
+				Entry e = it.next();
+				if(changes.affects(e.footprint)){
+					bytes -= e.bytes;
+					it.remove();
+					invalidations++;
+				}
+			}
+		}
+	}
+
+	// removes everything, e.g. when the service changes
+	public synchronized void clear(){
+		generation++;
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized CacheStats getStats(){
+		return new CacheStats(entries.size(), bytes, maxBytes, hits, misses, evictions, invalidations, expirations);
+	}
+
+
+	private static class Entry {
+		final Object value;
+		final long bytes;
+		final Footprint footprint;
+		final long created;
+
+		Entry(Object value, long bytes, Footprint footprint, long created){
+			this.value = value;
+			this.bytes = bytes;
+			this.footprint = footprint;
+			this.created = created;
+		}
+	}
+
+
+	/*
+	 * SELECT result: row-major cells, null = unbound. Terms repeated in the result (types, patients of many rows)
+	 * are stored once.
+	 */
+	static class Rows {
+		private final Var[] columns;
+		private final Node[] cells;
+		final long bytes;
+
+		Rows(List<String> vars, List<QuerySolution> solutions){
+			columns = new Var[vars.size()];
+			for(int i = 0; i < columns.length; i++)
+				columns[i] = Var.alloc(vars.get(i));
+			cells = new Node[solutions.size() * columns.length];
+
+			Map<Node, Node> terms = new HashMap<>();
+			long size = 64 + 8L * cells.length;
+			int cell = 0;
+			for(QuerySolution solution : solutions)
+				for(String var : vars){
+					Node node = solution.contains(var) ? solution.get(var).asNode() : null;
+					if(node != null){
+						Node shared = terms.putIfAbsent(node, node);
+						if(shared == null)
+							size += CompactGraph.nodeBytes(node);
+						else
+							node = shared;
+					}
+					cells[cell++] = node;
+				}
+			this.bytes = size;
+		}
+
+		int size(){
+			return columns.length == 0 ? 0 : cells.length / columns.length;
+		}
+
+		// new solutions over the shared cells, the caller may modify the list
+		List<QuerySolution> solutions(){
+			List<QuerySolution> solutions = new ArrayList<>(size());
+			Model model = ModelFactory.createDefaultModel();
+			for(int row = 0; row < size(); row++)
+				solutions.add(new ResultBinding(model, binding(row)));
+			return solutions;
+		}
+
+		private Binding binding(int row){
+			BindingMap binding = BindingFactory.create();
+			for(int column = 0; column < columns.length; column++){
+				Node node = cells[row * columns.length + column];
+				if(node != null)
+					binding.add(columns[column], node);
+			}
+			return binding;
+		}
+	}
+
+
+	/*
+	 * Predicates and rdf:type classes a query reads or an update writes.
+	 * Query: concrete predicates, and classes of "?x rdf:type <C>" patterns (rdf:type itself only with a variable class).
+	 * Update: concrete predicates (incl. rdf:type), classes of concrete rdf:type triples, anyType for a variable class.
+	 */
+	static class Footprint {
+		boolean all = false;
+		boolean anyType = false;
+		final Set<Node> predicates = new HashSet<>();
+		final Set<Node> types = new HashSet<>();
+
+		// algebra of the WHERE part, a CONSTRUCT template adds no dependency
+		static Footprint ofQuery(Op op){
+			Footprint footprint = new Footprint();
+			footprint.read(op);
+			return footprint;
+		}
+
+		static Footprint ofUpdate(UpdateRequest request){
+			Footprint footprint = new Footprint();
+			for(Update op : request.getOperations()){
+				if(op instanceof UpdateModify){
+					footprint.write(((UpdateModify) op).getDeleteQuads());
+					footprint.write(((UpdateModify) op).getInsertQuads());
+				}
+				else if(op instanceof UpdateData)
+					footprint.write(((UpdateData) op).getQuads());
+				else if(op instanceof UpdateDeleteWhere)
+					footprint.write(((UpdateDeleteWhere) op).getQuads());
+				else
+					// CLEAR, DROP, LOAD, COPY, MOVE, ADD - whole graphs
+					footprint.all = true;
+			}
+			return footprint;
+		}
+
+		static Footprint ofTriples(Graph graph){
+			Footprint footprint = new Footprint();
+			ExtendedIterator<Triple> it = graph.find();
+			try {
+				while(it.hasNext()){
+					Triple t = it.next();
+					footprint.predicates.add(t.getPredicate());
+					if(t.getPredicate().equals(RDF.Nodes.type))
+						footprint.types.add(t.getObject());
+				}
+			} finally {
+				it.close();
+			}
+			return footprint;
+		}
+
+		// true when a triple written by this (update) footprint may match a pattern of the query footprint
+		boolean affects(Footprint query){
+			return all || query.all
+					|| !Collections.disjoint(predicates, query.predicates)
+					|| !Collections.disjoint(types, query.types)
+					|| (anyType && !query.types.isEmpty());
+		}
+
+		private void read(Triple pattern){
+			Node p = pattern.getPredicate();
+			if(!p.isConcrete())
+				all = true;
+			else if(p.equals(RDF.Nodes.type) && pattern.getObject().isConcrete())
+				types.add(pattern.getObject());
+			else
+				predicates.add(p);
+		}
+
+		private void write(List<Quad> quads){
+			for(Quad quad : quads){
+				Node p = quad.getPredicate();
+				if(!p.isConcrete()){
+					all = true;
+					continue;
+				}
+				predicates.add(p);
+				if(p.equals(RDF.Nodes.type)){
+					if(quad.getObject().isConcrete())
+						types.add(quad.getObject());
+					else
+						anyType = true;
+				}
+			}
+		}
+
+		private void read(Op op){
+			OpWalker.walk(op, new OpVisitorBase(){
+				@Override
+				public void visit(OpBGP bgp){
+					bgp.getPattern().forEach(Footprint.this::read);
+				}
+
+				@Override
+				public void visit(OpTriple triple){
+					read(triple.getTriple());
+				}
+
+				@Override
+				public void visit(OpQuadPattern quads){
+					quads.getBasicPattern().forEach(Footprint.this::read);
+				}
+
+				@Override
+				public void visit(OpPath path){
+					if(path.getTriplePath().isTriple())
+						read(path.getTriplePath().asTriple());
+					else
+						all = true;
+				}
+
+				@Override
+				public void visit(OpService service){
+					all = true;
+				}
+
+				@Override
+				public void visit(OpDatasetNames names){
+					all = true;
+				}
+
+				// patterns of EXISTS / NOT EXISTS
+				@Override
+				public void visit(OpFilter filter){
+					read(filter.getExprs());
+				}
+
+				@Override
+				public void visit(OpLeftJoin join){
+					if(join.getExprs() != null)
+						read(join.getExprs());
+				}
+
+				@Override
+				public void visit(OpExtend extend){
+					extend.getVarExprList().getExprs().values().forEach(Footprint.this::read);
+				}
+			});
+		}
+
+		private void read(ExprList exprs){
+			exprs.forEach(this::read);
+		}
+
+		private void read(Expr expr){
+			if(expr instanceof ExprFunctionOp)
+				read(((ExprFunctionOp) expr).getGraphPattern());
+			if(expr.isFunction())
+				expr.getFunction().getArgs().forEach(this::read);
+		}
+	}
+
+
+	public static class CacheStats {
+		public final int entries;
+		public final long bytes;
+		public final long maxBytes;
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final long invalidations;
+		public final long expirations;
+
+		CacheStats(int entries, long bytes, long maxBytes, long hits, long misses, long evictions, long invalidations, long expirations){
+			this.entries = entries;
+			this.bytes = bytes;
+			this.maxBytes = maxBytes;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.invalidations = invalidations;
+			this.expirations = expirations;
+		}
+
+		public double hitRate(){
+			return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+		}
+
+		@Override
+		public String toString(){
+			return String.format("result cache: %d entries, %.1f kB of %.0f MB, hits %d, misses %d, hit rate %.1f %%, evictions %d, invalidations %d, expirations %d",
+					entries, bytes / 1e3, maxBytes / 1e6, hits, misses, 100 * hitRate(), evictions, invalidations, expirations);
+		}
+	}
+}
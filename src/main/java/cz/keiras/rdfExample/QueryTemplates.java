@@ -0,0 +1,245 @@
+package cz.keiras.rdfExample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.syntax.Template;
+import org.apache.jena.sparql.syntax.syntaxtransform.QueryTransformOps;
+import org.apache.jena.sparql.syntax.syntaxtransform.UpdateTransformOps;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+
+
+/*
+ * Registry of parsed SPARQL queries and updates.
+ *
+ * Each template is parsed once at registration. Parameters are ordinary variables of the template
+ * (e.g. ?root), a call replaces them by constants directly in the parsed syntax tree - no string
+ * concatenation, no re-parsing and no FILTER (?root = <...>): the constant is part of the triple
+ * patterns, so the engine uses it for index lookups from the first step.
+ * Same effect as ParameterizedSparqlString or initial bindings, but it also works for remote
+ * services, which don't support initial bindings, and it does not parse the query text again.
+ *
+ * Statistics: hits per template (uses of the parsed form) and its parse time at registration; misses are
+ * queries and updates parsed from text at call time (parseQuery/parseUpdate, e.g. Fuseki.fusekiSelect(String)),
+ * counted with their measured parse time. Text of a template (queryText) is not a hit, the caller parses it again.
+ * Returned queries and updates are tagged with the template name, Metrics record their latency per template.
+ * */
+
+
+public class QueryTemplates {
+
+	private final Map<String, Entry> templates = new ConcurrentHashMap<>();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder missNanos = new LongAdder();
+
+	static {
+		// first parse initializes the parser classes, keep it out of measured parse times
+		QueryFactory.create("ASK {}");
+		UpdateFactory.create("CLEAR DEFAULT");
+	}
+
+	public void registerQuery(String name, String sparql){
+		long start = System.nanoTime();
+		Query query = QueryFactory.create(sparql);
+		templates.put(name, new Entry(query, null, System.nanoTime() - start));
+	}
+
+	public void registerUpdate(String name, String sparql){
+		long start = System.nanoTime();
+		UpdateRequest update = UpdateFactory.create(sparql);
+		templates.put(name, new Entry(null, update, System.nanoTime() - start));
+	}
+
+	// query without parameters, returns a copy - Query objects are mutable
+	public Query query(String name){
+		return query(name, Collections.emptyMap());
+	}
+
+	// query with one parameter, e.g. query("constructDepth2", "root", NodeFactory.createURI(uri))
+	public Query query(String name, String var, Node value){
+		return query(name, Collections.singletonMap(var, value));
+	}
+
+	public Query query(String name, Map<String, Node> parameters){
+		Entry e = queryEntry(name);
+		e.hits.increment();
+		Query query = instantiate(e, parameters);
+		// latency of its executions is recorded per template as well
+		Metrics.tag(query, name);
+		return query;
+	}
+
+	// SPARQL text of the query with parameters, not counted as a hit - prefer query(), the text has to be parsed again
+	public String queryText(String name, String var, Node value){
+		return instantiate(queryEntry(name), Collections.singletonMap(var, value)).toString();
+	}
+
+	private static Query instantiate(Entry e, Map<String, Node> parameters){
+		Query query;
+		if(parameters.isEmpty())
+			query = e.query.cloneQuery();
+		else {
+			Map<Var, Node> substitution = substitution(parameters);
+			query = QueryTransformOps.transform(e.query, substitution);
+			// the transformation replaces variables in WHERE only, CONSTRUCT template needs the same substitution
+			if(query.isConstructType())
+				query.setConstructTemplate(substitute(query.getConstructTemplate(), substitution));
+		}
+		return query;
+	}
+
+	public UpdateRequest update(String name){
+		return update(name, Collections.emptyMap());
+	}
+
+	// variables in templates (DELETE/INSERT) and WHERE are substituted
+	public UpdateRequest update(String name, Map<String, Node> parameters){
+		Entry e = entry(name);
+		if(e.update == null)
+			throw new IllegalArgumentException("template " + name + " is not an update");
+		e.hits.increment();
+
+		// transformation always creates a new request, the cached one is never modified
+		UpdateRequest update = UpdateTransformOps.transform(e.update, substitution(parameters));
+		Metrics.tag(update, name);
+		return update;
+	}
+
+	// query text without a template: parsed now, counted as a miss
+	public Query parseQuery(String sparql){
+		long start = System.nanoTime();
+		Query query = QueryFactory.create(sparql);
+		miss(start);
+		return query;
+	}
+
+	public UpdateRequest parseUpdate(String sparql){
+		long start = System.nanoTime();
+		UpdateRequest update = UpdateFactory.create(sparql);
+		miss(start);
+		return update;
+	}
+
+	private void miss(long startNanos){
+		missNanos.add(System.nanoTime() - startNanos);
+		misses.increment();
+	}
+
+	public static Node uri(String uri){
+		return NodeFactory.createURI(uri);
+	}
+
+	private Entry queryEntry(String name){
+		Entry e = entry(name);
+		if(e.query == null)
+			throw new IllegalArgumentException("template " + name + " is not a query");
+		return e;
+	}
+
+	private Entry entry(String name){
+		Entry e = templates.get(name);
+		if(e == null)
+			throw new IllegalArgumentException("unknown template " + name);
+		return e;
+	}
+
+	private static Map<Var, Node> substitution(Map<String, Node> parameters){
+		Map<Var, Node> substitution = new HashMap<>();
+		parameters.forEach((var, value) -> substitution.put(Var.alloc(var), value));
+		return substitution;
+	}
+
+	private static Template substitute(Template template, Map<Var, Node> substitution){
+		BindingMap binding = BindingFactory.create();
+		substitution.forEach(binding::add);
+
+		BasicPattern pattern = new BasicPattern();
+		for(Triple t : template.getTriples())
+			pattern.add(Substitute.substitute(t, binding));
+		return new Template(pattern);
+	}
+
+	public Map<String, TemplateStats> getStats(){
+		Map<String, TemplateStats> stats = new LinkedHashMap<>();
+		List<String> names = new ArrayList<>(templates.keySet());
+		Collections.sort(names);
+		for(String name : names){
+			Entry e = templates.get(name);
+			stats.put(name, new TemplateStats(name, e.hits.sum(), e.parseNanos));
+		}
+		return stats;
+	}
+
+	public long getHits(){
+		long hits = 0;
+		for(Entry e : templates.values())
+			hits += e.hits.sum();
+		return hits;
+	}
+
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	// share of queries/updates that were not parsed at call time
+	public double hitRate(){
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? Double.NaN : (double) hits / total;
+	}
+
+	public String summary(){
+		long misses = getMisses();
+		return String.format("templates: hits %d, misses %d (parsed at call time, %.1f ms, %.3f ms each), hit rate %.1f %%",
+				getHits(), misses, missNanos.sum() / 1e6, misses == 0 ? 0 : missNanos.sum() / 1e6 / misses, 100 * hitRate());
+	}
+
+
+	private static class Entry {
+		final Query query;
+		final UpdateRequest update;
+		final long parseNanos;
+		final LongAdder hits = new LongAdder();
+
+		Entry(Query query, UpdateRequest update, long parseNanos){
+			this.query = query;
+			this.update = update;
+			this.parseNanos = parseNanos;
+		}
+	}
+
+
+	public static class TemplateStats {
+		public final String name;
+		public final long hits;
+		public final long parseNanos;
+
+		TemplateStats(String name, long hits, long parseNanos){
+			this.name = name;
+			this.hits = hits;
+			this.parseNanos = parseNanos;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%-28s hits %6d  parse at registration %.3f ms", name, hits, parseNanos / 1e6);
+		}
+	}
+}
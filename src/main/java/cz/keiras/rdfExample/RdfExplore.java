@@ -4,17 +4,21 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.ontology.OntModel;
 import org.apache.jena.ontology.OntProperty;
 import org.apache.jena.rdf.model.Model;
@@ -23,9 +27,9 @@ import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.ResIterator;
 import org.apache.jena.rdf.model.Resource;
-import org.apache.jena.rdf.model.SimpleSelector;
 import org.apache.jena.rdf.model.Statement;
-import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.vocabulary.DC;
 import org.apache.jena.vocabulary.RDF;
 
@@ -68,26 +72,29 @@ public class RdfExplore {
 	static RDFNode patient = DS.PATIENT_CLASS; 	// Careful, sometimes java attribute names differ from RDF local names
 	static Property dateTimeBirth = DS.DATETIME_BIRTH;
 	
-	// to prevent infinite recursion loop
-	static List<Resource> traversedNodes = new ArrayList<>();
-	
 	public static void main(String[] in){
 
 		try {
 			// parse input RDF file into model
-			// using Java7 NIO (Files.*, Paths.*) for simplicity, it is possible to provide other valid BufferedReader
+			// N-Triples is line-based, large files are split into chunks parsed on all cores, see ParallelNTriplesLoader
+			// (more files, e.g. daily dumps, can be added to the map and are loaded concurrently)
 			// Model has graph-like structure
-			Model model = ModelFactory
-							.createDefaultModel()
-							.read(Files.newBufferedReader(Paths.get("example/dataset.rdf"), Charset.forName("UTF8")), null, "N-TRIPLES");
+			Model model = ModelFactory.createModelForGraph(
+					ParallelNTriplesLoader.loadGraph(Collections.singletonMap(Paths.get("example/dataset.rdf"), Lang.NTRIPLES)));
 			
 			// ----- Save model in other formats -----
 			new File("out/").mkdir();
-			model.write(Files.newBufferedWriter(Paths.get("out/dataset.ttl"), Charset.forName("UTF8")), "TTL") ;
-			model.write(Files.newBufferedWriter(Paths.get("out/dataset.nt"), Charset.forName("UTF8")), "N-TRIPLES") ;
-			model.write(Files.newBufferedWriter(Paths.get("out/dataset.xml"), Charset.forName("UTF8")), "RDF/XML") ;
-			model.write(Files.newBufferedWriter(Paths.get("out/dataset.json"), Charset.forName("UTF8")), "JSON-LD") ;
-			model.write(Files.newBufferedWriter(Paths.get("out/dataset2.json"), Charset.forName("UTF8")), "RDF/JSON") ;
+			// the graph loaded above is written into all formats, the file is not parsed again and the graph not copied:
+			// streamable formats get its triples one by one, the others are written from it (see StreamingConverter;
+			// for files larger than memory StreamingConverter.convert(path, ...) streams straight from the parser)
+			Map<Path, RDFFormat> targets = new LinkedHashMap<>();
+			targets.put(Paths.get("out/dataset.nt"), RDFFormat.NTRIPLES_UTF8);
+			targets.put(Paths.get("out/dataset.ttl"), RDFFormat.TURTLE);
+			targets.put(Paths.get("out/dataset.xml"), RDFFormat.RDFXML_PLAIN);
+			targets.put(Paths.get("out/dataset.json"), RDFFormat.JSONLD);
+			targets.put(Paths.get("out/dataset2.json"), RDFFormat.RDFJSON);
+			StreamingConverter.convert(model.getGraph(), targets, Collections.emptyMap())
+				.forEach(System.out :: println);
 
 			// define prefixes in the RDF model
 			model.setNsPrefix("dc", DC.NS);
@@ -102,9 +109,16 @@ public class RdfExplore {
 			model.write(Files.newBufferedWriter(Paths.get("out/prefixedDataset.xml"), Charset.forName("UTF8")), "RDF/XML") ;
 			model.write(Files.newBufferedWriter(Paths.get("out/prefixedDataset.json"), Charset.forName("UTF8")), "JSON-LD") ;
 			model.write(Files.newBufferedWriter(Paths.get("out/prefixedDataset2.json"), Charset.forName("UTF8")), "RDF/JSON") ;
+			// binary snapshot (RDF Thrift, IRIs shortened by the prefixes above, LZ4), see BinarySnapshot
+			BinarySnapshot.write(model, Paths.get("out/prefixedDataset.rdft.lz4"), BinarySnapshot.Compression.LZ4);
 
 			
 			
+			// analyses below only read the model; "compact" argument runs them on the dictionary-encoded
+			// read-only CompactGraph instead of the default in-memory graph (less heap, faster pattern scans)
+			if(in.length > 0 && in[0].equals("compact"))
+				model = ModelFactory.createModelForGraph(CompactGraph.copyOf(model.getGraph()));
+			
 			// ----- Get all node types in model ----
 			// *** The dangerous way *** 
 			Set<RDFNode> nodeTypesA = findAllNodeTypesInModel1(model);
@@ -126,7 +140,9 @@ public class RdfExplore {
 			printAddressesNotInPlzen(model);
 			
 			// ----- Get property description from ontology -----
-	        OntModel ontology = loadOntology("example/dasta.owl");
+	        // precomputed labels, domains, ranges and types, read from a snapshot after the first run (see OntologyMetadata);
+	        // printPropertyInfo(dateTimeBirth, loadOntology("example/dasta.owl")) prints the same from the OntModel
+	        OntologyMetadata ontology = OntologyMetadata.load(Paths.get("example/dasta.owl"));
 	        printPropertyInfo(dateTimeBirth, ontology);	
 	        printPropertyInfo(DS.CLINICAL_EVENT, ontology);		
 	        
@@ -176,50 +192,34 @@ public class RdfExplore {
 	static void printResourcesOfTypes(Model model, Set<RDFNode> nodeTypesB){
 		System.out.format("%n---Print all types and resources of that type---%n");
 		
+		// all triples {?s rdf:type ?type .} are read once and grouped by type, see TypeProfiler
+		// (formerly one listResourcesWithProperty(nodeType, type) scan per type)
+		TypeProfiler.Profile profile = TypeProfiler.profile(model.getGraph());
+		
 		for(RDFNode type : nodeTypesB){	
-			// get all Resources having rdf:type and specified type from previous line
-			// all ?s in triples like {?s rdf:type rdfType .}
-			List<Resource> list = model.listResourcesWithProperty(nodeType, type).toList();
-
 			// print node type, number of nodes and list the relevant nodes URI
-			System.out.format("(%s) %s%n", list.size(), type);
-			for(Resource r : list)
-				System.out.format("++  %s%n",r);
+			System.out.format("(%s) %s%n", profile.count(type.asNode()), type);
+			for(Node r : profile.instances(type.asNode()))
+				System.out.format("++  %s%n", model.asRDFNode(r));
 		}
 	}
 	
 	static void printPatientsByAge(Model model){
 		System.out.format("%n---Print patients sorted by age---%n");
 		
-		// get list of patients
-		List<Resource> patients = model.listResourcesWithProperty(nodeType, patient).toList();
-		// sort by custom lambda sorting function
-		patients.sort((p1, p2) -> Double.compare(
-				// Statement.getString() is shortcut for Statement.getObject().asLiteral().getString()
-				dateToAge(p1.getProperty(dateTimeBirth).getString()),
-				dateToAge(p2.getProperty(dateTimeBirth).getString())
-				));
+		// birth dates are parsed once into a sorted primitive index instead of in every comparison of a custom sort,
+		// see PatientCohortIndex (supports also age range queries, e.g. index.agedBetween(20, 40, LocalDate.now()))
+		PatientCohortIndex index = PatientCohortIndex.build(model);
+		LocalDate today = LocalDate.now();
+		
+		for(int i = 0; i < index.size(); i++)
+			System.out.format("(%.1f) %s%n", PatientCohortIndex.age(index.birthEpochDayOfYoungest(i), today), index.youngest(i).getLocalName());
 		
-		for(Resource p : patients)
-			System.out.format("(%.1f) %s%n", dateToAge(p.getProperty(dateTimeBirth).getString()), p.getLocalName());
+		// patients with missing or invalid birth date, reported at once
+		index.getErrors().forEach(System.out :: println);
 	}
 
 	
-	// util function calculating number of years passed from input date to present 
-	static double dateToAge(String isoDateString){
-		// LocalDate - a date without time-zone in the ISO-8601 calendar system, such as 2007-12-03. 
-		try{ 
-			LocalDate dateBirth = LocalDate.parse(isoDateString, DateTimeFormatter.ISO_LOCAL_DATE);
-			LocalDate dateToday = LocalDate.now();
-			
-			return (dateToday.toEpochDay() - dateBirth.toEpochDay())/365.25;
-			
-		}catch(DateTimeParseException e){
-			System.out.format("DateTimeParseException: %s%n", isoDateString);
-			return Double.NaN;
-		}
-	}
-	
 	static void printAddressesNotInPlzen(Model model){
 		System.out.format("%n---Print addresses not in Plzen---%n");
 		
@@ -229,23 +229,20 @@ public class RdfExplore {
 		// * model.listResourcesWithProperty(Property, RDFNode)
 		// are syntactic sugar over a primitive query method model.listStatements(Selector s).
 		
-		StmtIterator iter = model.listStatements(
-				// first filter
-			    new SimpleSelector(null, DS.ADDRESS_CITY, (RDFNode) null){
-			    	@Override
-			        public boolean selects(Statement s){
-			    		// additional filter(s)
-			        	return !s.getString().toLowerCase().contains("plzeň");
-			        }
-			    });
-		
-		while(iter.hasNext()){
-			Statement st = iter.next();
+		// Custom filters can be written as SimpleSelector subclass overriding selects(Statement), e.g.
+		//   new SimpleSelector(null, DS.ADDRESS_CITY, (RDFNode) null){ public boolean selects(Statement s){ return !s.getString().toLowerCase().contains("plzeň"); } }
+		// but then every ds:addressCity statement is tested (and its value lower-cased) on every call.
+		// LiteralIndex answers such filters from an index of the property values, built once per model;
+		// in SPARQL the same as  (?address ?city) lit:notContains (ds:addressCity "plzeň")
+		for(Triple t : LiteralIndex.forProperty(model.getGraph(), DS.ADDRESS_CITY.asNode()).notContains("plzeň")){
+			Statement st = model.asStatement(t);
 			System.out.format("%s %s%n", st.getSubject(), st.getObject());
 		}
 	}
 	
 	static OntModel loadOntology(String filepath){
+		// createOntologyModel() = OntModelSpec.OWL_MEM_RDFS_INF, i.e. Reasoning.Profile.RDFS;
+		// use loadOntology(filepath, profile) when asserted triples are enough or entailments should be precomputed
 		OntModel ontology = ModelFactory.createOntologyModel();
         
 		// alternative: use web source by default and define local file as backup
@@ -260,6 +257,10 @@ public class RdfExplore {
 		return ontology;
 	}
 	
+	static OntModel loadOntology(String filepath, Reasoning.Profile profile){
+		return Reasoning.ontology(filepath, profile);
+	}
+	
 	static void printPropertyInfo(Property property, OntModel ontology){
 	    String propUri = property.toString();
 	    OntProperty prop = ontology.getOntProperty(propUri);
@@ -273,33 +274,27 @@ public class RdfExplore {
 	    System.out.format("RDF type: \"%s\" %n", prop.listRDFTypes(true).toList());
 	}
 	
+	static void printPropertyInfo(Property property, OntologyMetadata ontology){
+	    String propUri = property.toString();
+	    
+	    System.out.format("%n---Print info about %s---%n", propUri);
+	    // same values as from OntModel above, answered from precomputed maps
+	    System.out.format("label en: \"%s\"; cs: \"%s\" %n", ontology.label(property, "en"), ontology.label(property, "cs"));
+	    System.out.format("domain: \"%s\" %n", ontology.domain(property));
+	    System.out.format("range: \"%s\" %n", ontology.range(property));
+	    
+	    System.out.format("RDF type: \"%s\" %n", ontology.types(property));
+	}
+	
 	static void traverseGraph(Model model, String rootUri){
         System.out.format("%n---Traversing from %s---%n", rootUri);
-        traversedNodes.clear();
-        printDataHierarchy(model.getResource(rootUri), 1);
+        printDataHierarchy(model.getResource(rootUri), GraphTraversal.UNLIMITED);
 	}
 	
-	static void printDataHierarchy(Resource root, int layer){
-		// keeping track of traversed nodes to prevent infinite recursion
-		traversedNodes.add(root);
-		System.out.format("%s%n",root.getLocalName());
-		
-		// print datatype properties
-		for(Statement statement : root.listProperties().toList()){
-			RDFNode object = statement.getObject(); 
-			if(object.isLiteral())
-				System.out.format("%"+(2*layer)+"s%s %s%n", "", statement.getPredicate().getLocalName(), object.asLiteral().toString());
-			
-		}
-		
-		// print object properties
-		for(Statement statement : root.listProperties().toList()){
-			RDFNode object = statement.getObject(); 
-			if(object.isResource() && !traversedNodes.contains(object.asResource())){
-				System.out.format("%"+(2*layer)+"s%s ", "", statement.getPredicate().getLocalName());
-				printDataHierarchy(object.asResource(), layer+1);
-			}
-		}
+	static void printDataHierarchy(Resource root, int maxDepth){
+		// iterative traversal with a hash set of visited nodes, no recursion and no shared static state
+		// (see GraphTraversal, other visitors can e.g. collect the traversed subgraph)
+		GraphTraversal.traverse(root.getModel(), root, maxDepth, new GraphTraversal.Printer());
 	}
 	
 	static void printTimepoints(Model model){
@@ -0,0 +1,262 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.ontology.OntDocumentManager;
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.ontology.OntResource;
+import org.apache.jena.rdf.model.InfModel;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.reasoner.Reasoner;
+import org.apache.jena.reasoner.ReasonerRegistry;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+
+import cz.zcu.mre.vocab.DS;
+
+
+/*
+ * Reasoning profiles of ontology and data models.
+ *
+ * ModelFactory.createOntologyModel() uses OWL_MEM_RDFS_INF: every query goes through a backward-chaining
+ * RDFS reasoner, even when only asserted triples are needed. A profile makes the choice explicit:
+ * - NONE			asserted triples only, plain in-memory graph
+ * - RDFS			RDFS rules (subClassOf, subPropertyOf, domain, range), evaluated at query time
+ * - OWL_MICRO		RDFS + a subset of OWL (equivalence, inverse, transitive, ...) evaluated at query time
+ * - MATERIALIZED	OWL_MICRO entailments computed once and copied into a plain graph, queries are index lookups
+ * Every profile reads ontologies with their owl:imports (OntModel.read), so the entailments are the same.
+ * A materialized ontology is computed once per file and shared read-only until the file or one of its imports
+ * changes; imports are checked like the snapshots of OntologyMetadata (files by size and modification time,
+ * remote documents once per OntologyMetadata.REMOTE_CHECK_MS).
+ *
+ * Data paths bind the ontologies as a schema of the reasoner, so e.g. "all ds:Patient including subclasses"
+ * is model.listResourcesWithProperty(RDF.type, DS.PATIENT_CLASS) in every profile except NONE.
+ * A materialized model can be kept in TDB, see TdbStore materialize.
+ *
+ * usage: Reasoning [synthetic triples] - load time, query time and retained heap of every profile
+ *        over dataset.rdf (or synthetic data of the given size) + dasta.owl + ibd.owl
+ * */
+
+
+public class Reasoning {
+	// file -> materialized ontology, see ontology(file, MATERIALIZED)
+	private static final Map<String, Materialized> materialized = new ConcurrentHashMap<>();
+	// imports are part of the materialized statements already, their owl:imports are not followed again
+	private static final OntModelSpec MATERIALIZED_SPEC = new OntModelSpec(OntModelSpec.OWL_MEM);
+	static {
+		OntDocumentManager documents = new OntDocumentManager();
+		documents.setProcessImports(false);
+		MATERIALIZED_SPEC.setDocumentManager(documents);
+	}
+
+	public enum Profile {
+		NONE(OntModelSpec.OWL_MEM),
+		RDFS(OntModelSpec.OWL_MEM_RDFS_INF),
+		OWL_MICRO(OntModelSpec.OWL_MEM_MICRO_RULE_INF),
+		MATERIALIZED(OntModelSpec.OWL_MEM);
+
+		// spec of the OntModel; MATERIALIZED needs no reasoner after the entailments are copied
+		final OntModelSpec spec;
+
+		Profile(OntModelSpec spec){
+			this.spec = spec;
+		}
+
+		// reasoner computing the entailments, null for NONE
+		Reasoner reasoner(){
+			switch(this){
+			case RDFS:
+				return ReasonerRegistry.getRDFSReasoner();
+			case OWL_MICRO:
+			case MATERIALIZED:
+				return ReasonerRegistry.getOWLMicroReasoner();
+			default:
+				return null;
+			}
+		}
+	}
+
+	public static void main(String[] in){
+		try {
+			// optional size of synthetic data, heap of the example data is close to measurement noise
+			Model data = in.length > 0
+					? SyntheticPatientGenerator.generateModel(Long.parseLong(in[0]), 42)
+					: ModelFactory
+						.createDefaultModel()
+						.read(Files.newBufferedReader(Paths.get("example/dataset.rdf"), Charset.forName("UTF8")), null, "N-TRIPLES");
+			Model schema = schema("example/dasta.owl", "example/ibd.owl");
+			// reasoner classes and rule parsing, keep them out of the measurement
+			for(Profile profile : Profile.values()){
+				dataModel(data, schema, profile).listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList();
+				ontology("example/dasta.owl", profile).getOntProperty(DS.DATETIME_BIRTH.getURI()).listRange().toList();
+			}
+
+			for(Profile profile : Profile.values())
+				System.out.println(measure(data, schema, profile));
+
+			// ontology alone, as RdfExplore.loadOntology; entailed ranges (rdfs:Resource, ...) are listed too,
+			// so with inference getRange() may return any of them
+			for(Profile profile : Profile.values()){
+				long start = System.nanoTime();
+				OntModel ontology = ontology("example/dasta.owl", profile);
+				List<? extends OntResource> ranges = ontology.getOntProperty(DS.DATETIME_BIRTH.getURI()).listRange().toList();
+				System.out.format("%-12s dasta.owl + ranges of ds:datetimeBirth %7.1f ms %s%n", profile, (System.nanoTime() - start) / 1e6, ranges);
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// model of the profile is reachable only inside this method, heap used by the previous one is garbage already
+	static String measure(Model data, Model schema, Profile profile){
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		gc();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+		long start = System.nanoTime();
+		Model model = dataModel(data, schema, profile);
+		long loadNanos = System.nanoTime() - start;
+
+		// first query pays for lazy inference (backward chaining builds its tables on demand)
+		start = System.nanoTime();
+		int patients = model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList().size();
+		long firstQueryNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		model.listResourcesWithProperty(RdfExplore.nodeType, RdfExplore.patient).toList().size();
+		long queryNanos = System.nanoTime() - start;
+
+		gc();
+		long heapAfter = memory.getHeapMemoryUsage().getUsed();
+		// keep the model reachable until the heap is measured (close() would close also data and schema)
+		boolean empty = model.isEmpty();
+
+		return String.format("%-12s load %7.1f ms, 1st query %7.1f ms, next query %6.2f ms, %d patients%s, heap %+.1f MB",
+				profile, loadNanos / 1e6, firstQueryNanos / 1e6, queryNanos / 1e6, patients, empty ? " (empty)" : "", (heapAfter - heapBefore) / 1e6);
+	}
+
+	private static void gc(){
+		// one collection may leave garbage of finalizers
+		System.gc();
+		System.gc();
+	}
+
+	/*
+	 * Ontology of the file with the given profile (RdfExplore.loadOntology(file) = profile RDFS).
+	 * MATERIALIZED: asserted statements of the file and its imports go through the reasoner once, later calls
+	 * for the same unchanged file and imports return the cached entailments (read-only).
+	 */
+	public static OntModel ontology(String filepath, Profile profile){
+		if(profile != Profile.MATERIALIZED){
+			OntModel ontology = ModelFactory.createOntologyModel(profile.spec);
+			ontology.read(filepath);
+			return ontology;
+		}
+		long modified = lastModified(filepath);
+		Materialized cached = materialized.get(filepath);
+		if(cached != null && cached.modified == modified){
+			long now = System.currentTimeMillis();
+			boolean checkRemote = now - cached.importsChecked > OntologyMetadata.REMOTE_CHECK_MS;
+			Map<String, OntologyMetadata.Import> imports = OntologyMetadata.currentImports(cached.imports, checkRemote);
+			if(imports == null)
+				cached = null;
+			else if(checkRemote || !imports.equals(cached.imports)){
+				cached = new Materialized(modified, imports, checkRemote ? now : cached.importsChecked, cached.model);
+				materialized.put(filepath, cached);
+			}
+		} else
+			cached = null;
+		if(cached == null){
+			OntModel asserted = asserted(filepath);
+			Map<String, OntologyMetadata.Import> imports = OntologyMetadata.imports(asserted);
+			Model model = materialize(ModelFactory.createInfModel(profile.reasoner(), asserted));
+			cached = new Materialized(modified, imports, System.currentTimeMillis(),
+					ModelFactory.createModelForGraph(new GraphReadOnly(model.getGraph())));
+			materialized.put(filepath, cached);
+		}
+		return ModelFactory.createOntologyModel(MATERIALIZED_SPEC, cached.model);
+	}
+
+	// asserted statements of the file and of its imports (the union graph of an OntModel without reasoner)
+	static OntModel asserted(String filepath){
+		OntModel ontology = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM);
+		ontology.read(filepath);
+		return ontology;
+	}
+
+	// 0 for URLs and missing files: cached until the JVM ends
+	private static long lastModified(String filepath){
+		try {
+			return Files.getLastModifiedTime(Paths.get(filepath)).toMillis();
+		} catch (IOException | InvalidPathException e) {
+			return 0;
+		}
+	}
+
+	// the same for an ontology already read into a model (e.g. a TDB graph), its owl:imports are read as by OntModel.read
+	static OntModel asserted(Model ontology){
+		return ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, ontology);
+	}
+
+	// plain model with all given ontology files and their imports
+	public static Model schema(String... files){
+		Model schema = ModelFactory.createDefaultModel();
+		for(String file : files)
+			schema.add(asserted(file));
+		return schema;
+	}
+
+	// plain model with all given ontologies and their imports
+	public static Model schema(Model... ontologies){
+		Model schema = ModelFactory.createDefaultModel();
+		for(Model ontology : ontologies)
+			schema.add(asserted(ontology));
+		return schema;
+	}
+
+	/*
+	 * Data model with ontologies as schema:
+	 * NONE - read-only union of data and schema, RDFS/OWL_MICRO - inference model, MATERIALIZED - plain model
+	 * with asserted and inferred statements.
+	 */
+	public static Model dataModel(Model data, Model schema, Profile profile){
+		if(profile == Profile.NONE)
+			return ModelFactory.createUnion(data, schema);
+		InfModel inf = ModelFactory.createInfModel(profile.reasoner().bindSchema(schema), data);
+		return profile == Profile.MATERIALIZED ? materialize(inf) : inf;
+	}
+
+	// copies all statements of the inference model (asserted + entailed) into a plain in-memory model
+	public static Model materialize(InfModel inf){
+		Model materialized = ModelFactory.createDefaultModel();
+		materialized.setNsPrefixes(inf.getNsPrefixMap());
+		materialized.add(inf.listStatements());
+		return materialized;
+	}
+
+
+	private static class Materialized {
+		final long modified;
+		// owl:imports closure the model was computed from, remote ones last checked at importsChecked
+		final Map<String, OntologyMetadata.Import> imports;
+		final long importsChecked;
+		final Model model;
+
+		Materialized(long modified, Map<String, OntologyMetadata.Import> imports, long importsChecked, Model model){
+			this.modified = modified;
+			this.imports = imports;
+			this.importsChecked = importsChecked;
+			this.model = model;
+		}
+	}
+}
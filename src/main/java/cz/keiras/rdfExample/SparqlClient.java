@@ -0,0 +1,315 @@
+package cz.keiras.rdfExample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.DatasetAccessor;
+import org.apache.jena.query.DatasetAccessorFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.thrift.BinRDF;
+import org.apache.jena.sparql.engine.http.QueryEngineHTTP;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.apache.jena.update.UpdateExecutionFactory;
+import org.apache.jena.update.UpdateRequest;
+
+
+/*
+ * Reusable client of one SPARQL service (e.g. Fuseki dataset http://localhost:3030/dbm2).
+ *
+ * - all requests share one pooled HttpClient, connections are kept alive and reused
+ *   (QueryExecutionFactory.sparqlService(url, q) without a client opens a new connection per call)
+ * - connect/socket/pool timeouts are configurable
+ * - data can be uploaded through the Graph Store Protocol endpoint ("/data"), without SPARQL parsing on server
+ * - results can be consumed as they arrive from the socket (callback or Stream), nothing is buffered;
+ *   SELECT results are requested as SPARQL XML and CONSTRUCT results as N-Triples, both are parsed incrementally
+ * - setBinaryResults(true) requests RDF Thrift instead (application/sparql-results+thrift, application/rdf+thrift):
+ *   no XML/N-Triples tokenizing on either side, also parsed incrementally (see BinarySnapshot for files)
+ *
+ * Streams returned by selectStream()/constructStream() hold a pooled connection, close them (try-with-resources).
+ * Every update() and load() of any client is reported to the WriteListeners, e.g. the result cache of Fuseki.
+ * */
+
+
+public class SparqlClient implements Closeable {
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS = 60_000;
+
+	private final String queryEndpoint;
+	private final String updateEndpoint;
+	private final String graphStoreEndpoint;
+	private final PoolingHttpClientConnectionManager pool;
+	private final CloseableHttpClient httpClient;
+	private volatile boolean binaryResults = false;
+
+	// listeners of writes of all clients, see addWriteListener
+	private static final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+
+	/*
+	 * Called after a write of a client has ended, also after a failure: the server may have applied it
+	 * before the connection broke.
+	 */
+	public interface WriteListener {
+		void updated(SparqlClient client, UpdateRequest request);
+		void loaded(SparqlClient client, String graphUri, Model model);
+	}
+
+	public static void addWriteListener(WriteListener listener){
+		writeListeners.add(listener);
+	}
+
+	public static void removeWriteListener(WriteListener listener){
+		writeListeners.remove(listener);
+	}
+
+	public SparqlClient(String serviceUrl){
+		this(serviceUrl, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+	}
+
+	/*
+	 * serviceUrl			dataset URL, "/query", "/update" and "/data" endpoints are derived from it
+	 * maxConnections		pool size, it's also the limit of concurrent requests to the service
+	 * connectTimeoutMs		timeout of TCP connect and of waiting for a free pooled connection
+	 * socketTimeoutMs		maximal inactivity while reading response
+	 */
+	public SparqlClient(String serviceUrl, int maxConnections, int connectTimeoutMs, int socketTimeoutMs){
+		this.queryEndpoint = serviceUrl + "/query";
+		this.updateEndpoint = serviceUrl + "/update";
+		this.graphStoreEndpoint = serviceUrl + "/data";
+
+		pool = new PoolingHttpClientConnectionManager();
+		pool.setMaxTotal(maxConnections);
+		// all requests go to one host
+		pool.setDefaultMaxPerRoute(maxConnections);
+
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMs)
+				.setConnectionRequestTimeout(connectTimeoutMs)
+				.setSocketTimeout(socketTimeoutMs)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(pool)
+				.setDefaultRequestConfig(config)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.build();
+	}
+
+	public String getQueryEndpoint(){
+		return queryEndpoint;
+	}
+
+	public String getUpdateEndpoint(){
+		return updateEndpoint;
+	}
+
+	public String getGraphStoreEndpoint(){
+		return graphStoreEndpoint;
+	}
+
+	// RDF Thrift results instead of SPARQL XML / N-Triples, the server has to support them (Fuseki does)
+	public void setBinaryResults(boolean binary){
+		this.binaryResults = binary;
+	}
+
+	public boolean isBinaryResults(){
+		return binaryResults;
+	}
+
+	// new query execution using the pooled client, caller needs to close it
+	public QueryEngineHTTP queryExecution(Query query){
+		QueryEngineHTTP qe = new QueryEngineHTTP(queryEndpoint, query, httpClient);
+		// formats with incremental parsers in Jena (JSON results are read whole before the first row is returned)
+		qe.setSelectContentType(WebContent.contentTypeResultsXML);
+		qe.setModelContentType(binaryResults ? WebContent.contentTypeRDFThrift : WebContent.contentTypeNTriples);
+		return qe;
+	}
+
+	/*
+	 * SELECT with RDF Thrift results, QueryEngineHTTP of Jena 3.6 has no reader for them.
+	 * The response holds a pooled connection until it is closed.
+	 */
+	private CloseableHttpResponse selectThrift(Query q){
+		HttpPost post = new HttpPost(queryEndpoint);
+		post.setHeader(HttpHeaders.ACCEPT, WebContent.contentTypeResultsThrift);
+		post.setEntity(new UrlEncodedFormEntity(Collections.singletonList(new BasicNameValuePair("query", q.toString())), StandardCharsets.UTF_8));
+		try {
+			CloseableHttpResponse response = httpClient.execute(post);
+			int status = response.getStatusLine().getStatusCode();
+			if(status != HttpStatus.SC_OK){
+				IO.close(response);
+				throw new QueryExceptionHTTP(status, response.getStatusLine().getReasonPhrase());
+			}
+			return response;
+		} catch (IOException e) {
+			throw new QueryExceptionHTTP(e);
+		}
+	}
+
+	private static ResultSet thriftResults(CloseableHttpResponse response){
+		try {
+			return BinRDF.readResultSet(response.getEntity().getContent());
+		} catch (IOException e) {
+			IO.close(response);
+			throw new QueryExceptionHTTP(e);
+		} catch (RuntimeException e) {
+			IO.close(response);
+			throw e;
+		}
+	}
+
+	// ----- buffered API, same shape as Fuseki.fusekiSelect/fusekiConstruct -----
+
+	public List<QuerySolution> select(String q){
+		return select(QueryFactory.create(q));
+	}
+
+	public List<QuerySolution> select(Query q){
+		List<QuerySolution> qs = new ArrayList<>();
+		select(q, qs::add);
+		return qs;
+	}
+
+	public Model construct(String q){
+		return construct(QueryFactory.create(q));
+	}
+
+	public Model construct(Query q){
+		try(QueryEngineHTTP qe = queryExecution(q)){
+			return qe.execConstruct();
+		}
+	}
+
+	public void update(UpdateRequest request){
+		try {
+			UpdateExecutionFactory.createRemote(request, updateEndpoint, httpClient).execute();
+		} finally {
+			for(WriteListener listener : writeListeners)
+				listener.updated(this, request);
+		}
+	}
+
+	// Graph Store Protocol POST, adds triples of the model into the graph (graphUri == null -> default graph)
+	public void load(String graphUri, Model model){
+		DatasetAccessor accessor = DatasetAccessorFactory.createHTTP(graphStoreEndpoint, httpClient);
+		try {
+			if(graphUri == null)
+				accessor.add(model);
+			else
+				accessor.add(graphUri, model);
+		} finally {
+			for(WriteListener listener : writeListeners)
+				listener.loaded(this, graphUri, model);
+		}
+	}
+
+	// ----- streaming API -----
+
+	// calls action for each row as it is parsed from the response
+	public void select(String q, Consumer<QuerySolution> action){
+		select(QueryFactory.create(q), action);
+	}
+
+	public void select(Query q, Consumer<QuerySolution> action){
+		if(binaryResults){
+			CloseableHttpResponse response = selectThrift(q);
+			try {
+				thriftResults(response).forEachRemaining(action);
+			} finally {
+				IO.close(response);
+			}
+			return;
+		}
+		try(QueryEngineHTTP qe = queryExecution(q)){
+			ResultSet results = qe.execSelect();
+			while(results.hasNext())
+				action.accept(results.next());
+		}
+	}
+
+	// calls action for each triple as it is parsed from the response
+	public void construct(String q, Consumer<Triple> action){
+		construct(QueryFactory.create(q), action);
+	}
+
+	public void construct(Query q, Consumer<Triple> action){
+		try(QueryEngineHTTP qe = queryExecution(q)){
+			qe.execConstructTriples().forEachRemaining(action);
+		}
+	}
+
+	// lazy stream of rows, closing the stream releases the connection
+	public Stream<QuerySolution> selectStream(String q){
+		return selectStream(QueryFactory.create(q));
+	}
+
+	public Stream<QuerySolution> selectStream(Query q){
+		if(binaryResults){
+			CloseableHttpResponse response = selectThrift(q);
+			return stream(thriftResults(response), () -> IO.close(response));
+		}
+		QueryEngineHTTP qe = queryExecution(q);
+		try {
+			return stream(qe.execSelect(), qe::close);
+		} catch (RuntimeException e) {
+			// no stream to close, the connection would stay leased
+			qe.close();
+			throw e;
+		}
+	}
+
+	// lazy stream of triples, closing the stream releases the connection
+	public Stream<Triple> constructStream(String q){
+		return constructStream(QueryFactory.create(q));
+	}
+
+	public Stream<Triple> constructStream(Query q){
+		QueryEngineHTTP qe = queryExecution(q);
+		try {
+			return stream(qe.execConstructTriples(), qe::close);
+		} catch (RuntimeException e) {
+			qe.close();
+			throw e;
+		}
+	}
+
+	private static <T> Stream<T> stream(Iterator<T> it, Runnable close){
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(close);
+	}
+
+	@Override
+	public void close() throws IOException{
+		httpClient.close();
+	}
+}
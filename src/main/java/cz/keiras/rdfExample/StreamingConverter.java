@@ -0,0 +1,343 @@
+package cz.keiras.rdfExample;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.WrappedGraph;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.shared.impl.PrefixMappingImpl;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+import cz.zcu.mre.vocab.DS;
+import cz.zcu.mre.vocab.DSCL;
+import cz.zcu.mre.vocab.MRE;
+
+
+/*
+ * Streaming conversion of one RDF file into several serializations.
+ *
+ * Model.write() needs the whole graph in memory, which does not scale to multi-GB exports.
+ * RIOT parsers push triples one by one into a StreamRDF; this class parses the input once and
+ * fans every triple out to all streamable writers (N-TRIPLES, Turtle blocks/flat, RDF Thrift, ...),
+ * so the heap stays bounded regardless of the input size.
+ *
+ * Some formats can't be written as a stream (pretty Turtle, RDF/XML, JSON-LD, RDF/JSON), because
+ * the writer needs to see the whole graph first. For those the triples are collected into a graph
+ * during the same pass - only when such a format is requested - and written afterwards.
+ *
+ * A graph already loaded in memory is converted without parsing and without a copy (convert(Graph, ...)):
+ * streamable formats get the triples of graph.find(), the others are written from the graph itself.
+ *
+ * Each written format is reported with its throughput (triples/s spent in its writer) and peak heap.
+ * Peak heap of streamed formats is shared, they are all written during a single parser pass.
+ * */
+
+
+public class StreamingConverter {
+
+	public static void main(String[] in){
+		try {
+			Map<Path, RDFFormat> targets = new LinkedHashMap<>();
+			targets.put(Paths.get("out/dataset.nt"), RDFFormat.NTRIPLES_UTF8);
+			targets.put(Paths.get("out/dataset.blocks.ttl"), RDFFormat.TURTLE_BLOCKS);
+			targets.put(Paths.get("out/dataset.ttl"), RDFFormat.TURTLE_PRETTY);
+			targets.put(Paths.get("out/dataset.xml"), RDFFormat.RDFXML_PLAIN);
+			targets.put(Paths.get("out/dataset.json"), RDFFormat.JSONLD);
+			targets.put(Paths.get("out/dataset2.json"), RDFFormat.RDFJSON);
+
+			Map<String, String> prefixes = new LinkedHashMap<>();
+			prefixes.put("ds", DS.NS);
+			prefixes.put("dscl", DSCL.NS);
+			prefixes.put("mre", MRE.NS);
+			prefixes.put("mreid", "http://mre.zcu.cz/id/");
+
+			for(FormatReport r : convert(Paths.get("example/dataset.rdf"), Lang.NTRIPLES, targets, prefixes))
+				System.out.println(r);
+
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// true when RIOT has a writer able to emit triples as they arrive
+	public static boolean isStreamable(RDFFormat format){
+		return StreamRDFWriter.registered(format);
+	}
+
+	/*
+	 * Parses source once and writes it into every target file.
+	 * Prefixes (may be empty) are announced to all writers before the parser output.
+	 */
+	public static List<FormatReport> convert(Path source, Lang lang, Map<Path, RDFFormat> targets, Map<String, String> prefixes) throws IOException{
+		List<Sink> streamed = new ArrayList<>();
+		Map<Path, RDFFormat> whole = new LinkedHashMap<>();
+		split(targets, streamed, whole);
+
+		// explicit fallback - only formats which can't be streamed pay for the in-memory graph
+		Graph graph = whole.isEmpty() ? null : GraphFactory.createDefaultGraph();
+		if(graph != null)
+			streamed.add(new Sink(StreamRDFLib.graph(graph)));
+
+		FanOut fanOut = new FanOut(streamed);
+		List<FormatReport> reports = new ArrayList<>();
+
+		resetPeakHeap();
+		long parseStart = System.nanoTime();
+		try(InputStream is = Files.newInputStream(source)){
+			fanOut.start();
+			prefixes.forEach(fanOut::prefix);
+			RDFDataMgr.parse(new StreamRDFCloseShield(fanOut), is, lang);
+			fanOut.finish();
+		} finally {
+			for(Sink s : streamed)
+				s.close();
+		}
+		long streamPeak = peakHeap();
+		// the pass includes the streamed writers, their share is recorded as serialize[format] below
+		Metrics.record(Metrics.Operation.PARSE, parseStart, fanOut.count);
+
+		for(Sink s : streamed)
+			if(s.path != null)
+				reports.add(new FormatReport(s.path, s.format, true, fanOut.count, s.nanos, streamPeak));
+
+		if(graph != null){
+			prefixes.forEach(graph.getPrefixMapping()::setNsPrefix);
+			writeWhole(graph, whole, reports);
+		}
+
+		for(FormatReport r : reports)
+			Metrics.record(Metrics.Operation.SERIALIZE, r.format.toString(), r.nanos, r.triples);
+		return reports;
+	}
+
+	/*
+	 * Writes a graph already in memory into every target file, nothing is parsed or copied.
+	 * Prefixes (may be empty) are used on top of the prefixes of the graph, the graph itself is not changed.
+	 */
+	public static List<FormatReport> convert(Graph source, Map<Path, RDFFormat> targets, Map<String, String> prefixes) throws IOException{
+		List<Sink> streamed = new ArrayList<>();
+		Map<Path, RDFFormat> whole = new LinkedHashMap<>();
+		split(targets, streamed, whole);
+
+		Graph graph = source;
+		if(!prefixes.isEmpty()){
+			PrefixMapping mapping = new PrefixMappingImpl().setNsPrefixes(source.getPrefixMapping()).setNsPrefixes(prefixes);
+			graph = new WrappedGraph(source){
+				@Override
+				public PrefixMapping getPrefixMapping(){
+					return mapping;
+				}
+			};
+		}
+
+		FanOut fanOut = new FanOut(streamed);
+		List<FormatReport> reports = new ArrayList<>();
+
+		resetPeakHeap();
+		try {
+			fanOut.start();
+			graph.getPrefixMapping().getNsPrefixMap().forEach(fanOut::prefix);
+			graph.find().forEachRemaining(fanOut::triple);
+			fanOut.finish();
+		} finally {
+			for(Sink s : streamed)
+				s.close();
+		}
+		long streamPeak = peakHeap();
+
+		for(Sink s : streamed)
+			reports.add(new FormatReport(s.path, s.format, true, fanOut.count, s.nanos, streamPeak));
+		writeWhole(graph, whole, reports);
+
+		for(FormatReport r : reports)
+			Metrics.record(Metrics.Operation.SERIALIZE, r.format.toString(), r.nanos, r.triples);
+		return reports;
+	}
+
+	// creates the target directories, opens writers of the streamable formats, the rest goes to whole
+	static void split(Map<Path, RDFFormat> targets, List<Sink> streamed, Map<Path, RDFFormat> whole) throws IOException{
+		for(Map.Entry<Path, RDFFormat> e : targets.entrySet()){
+			if(e.getKey().getParent() != null)
+				Files.createDirectories(e.getKey().getParent());
+			if(isStreamable(e.getValue()))
+				streamed.add(new Sink(e.getKey(), e.getValue()));
+			else
+				whole.put(e.getKey(), e.getValue());
+		}
+	}
+
+	// formats whose writers need the whole graph, written one after another
+	static void writeWhole(Graph graph, Map<Path, RDFFormat> whole, List<FormatReport> reports) throws IOException{
+		for(Map.Entry<Path, RDFFormat> e : whole.entrySet()){
+			resetPeakHeap();
+			long start = System.nanoTime();
+			try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(e.getKey()))){
+				RDFDataMgr.write(os, graph, e.getValue());
+			}
+			reports.add(new FormatReport(e.getKey(), e.getValue(), false, graph.size(), System.nanoTime() - start, peakHeap()));
+		}
+	}
+
+	// sum of peak usage over all heap memory pools since the last reset
+	static long peakHeap(){
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	static void resetPeakHeap(){
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+
+	public static class FormatReport {
+		public final Path path;
+		public final RDFFormat format;
+		public final boolean streamed;
+		public final long triples;
+		public final long nanos;
+		public final long peakHeapBytes;
+
+		FormatReport(Path path, RDFFormat format, boolean streamed, long triples, long nanos, long peakHeapBytes){
+			this.path = path;
+			this.format = format;
+			this.streamed = streamed;
+			this.triples = triples;
+			this.nanos = nanos;
+			this.peakHeapBytes = peakHeapBytes;
+		}
+
+		public double triplesPerSecond(){
+			return nanos == 0 ? Double.NaN : triples * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%-28s %-22s %-8s %10d triples %12.0f triples/s  peak heap %6.1f MB",
+					path, format, streamed ? "stream" : "model", triples, triplesPerSecond(), peakHeapBytes / (1024.0 * 1024.0));
+		}
+	}
+
+
+	// one output of the fan-out, measures time spent inside its writer
+	static class Sink {
+		final Path path;
+		final RDFFormat format;
+		final StreamRDF stream;
+		final OutputStream out;
+		long nanos;
+
+		Sink(Path path, RDFFormat format) throws IOException{
+			this.path = path;
+			this.format = format;
+			this.out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+			this.stream = StreamRDFWriter.getWriterStream(out, format);
+		}
+
+		Sink(StreamRDF stream){
+			this.path = null;
+			this.format = null;
+			this.out = null;
+			this.stream = stream;
+		}
+
+		void close() throws IOException{
+			if(out != null)
+				out.close();
+		}
+	}
+
+
+	// forwards each parser event to all sinks
+	static class FanOut implements StreamRDF {
+		final Sink[] sinks;
+		long count;
+
+		FanOut(List<Sink> sinks){
+			this.sinks = sinks.toArray(new Sink[0]);
+		}
+
+		@Override
+		public void start(){
+			for(Sink s : sinks)
+				s.stream.start();
+		}
+
+		@Override
+		public void triple(Triple triple){
+			count++;
+			for(Sink s : sinks){
+				long t = System.nanoTime();
+				s.stream.triple(triple);
+				s.nanos += System.nanoTime() - t;
+			}
+		}
+
+		@Override
+		public void quad(Quad quad){
+			// conversion is defined for triples (default graph) only
+			if(quad.isTriple() || quad.isDefaultGraph())
+				triple(quad.asTriple());
+		}
+
+		@Override
+		public void base(String base){
+			for(Sink s : sinks)
+				s.stream.base(base);
+		}
+
+		@Override
+		public void prefix(String prefix, String iri){
+			for(Sink s : sinks)
+				s.stream.prefix(prefix, iri);
+		}
+
+		@Override
+		public void finish(){
+			for(Sink s : sinks)
+				s.stream.finish();
+		}
+	}
+
+
+	// RDFDataMgr.parse() calls start()/finish() itself, the fan-out is started and finished only once around it
+	static class StreamRDFCloseShield implements StreamRDF {
+		final StreamRDF other;
+
+		StreamRDFCloseShield(StreamRDF other){
+			this.other = other;
+		}
+
+		@Override public void start(){}
+		@Override public void triple(Triple triple){ other.triple(triple); }
+		@Override public void quad(Quad quad){ other.quad(quad); }
+		@Override public void base(String base){ other.base(base); }
+		@Override public void prefix(String prefix, String iri){ other.prefix(prefix, iri); }
+		@Override public void finish(){}
+	}
+}
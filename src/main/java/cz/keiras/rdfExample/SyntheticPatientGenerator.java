@@ -0,0 +1,170 @@
+package cz.keiras.rdfExample;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.DC;
+import org.apache.jena.vocabulary.RDF;
+
+import cz.zcu.mre.vocab.DS;
+import cz.zcu.mre.vocab.DSCL;
+import cz.zcu.mre.vocab.IBD;
+
+
+/*
+ * Generator of synthetic patient data with the shape of example/dataset.rdf + dataset2.ttl,
+ * for measuring how the analyses scale (10^6 - 10^8 triples).
+ *
+ * every patient (~41 triples):
+ * - ds:Patient + ds:Male/ds:Female, names, sex, ds:datetimeBirth
+ * - ds:address -> ds:PermanentAddress (city, ZIP, city part), about a third of patients live in Plzeň
+ * - 3x ds:clinicalEvent -> ds:MedicalExamination -> ds:originator (shared departments), ds:diagnosis
+ * - ibd:hasInflammatoryBowelDisease -> ibd:InflammatoryBowelDisease -> ibd:hasTherapy -> ibd:Therapy
+ *
+ * Output is streamed (StreamRDF), so the size is not limited by heap when written to a file.
+ * Same seed -> same data.
+ *
+ * usage: SyntheticPatientGenerator [triples (default 10^6)] [output .nt file]
+ * */
+
+
+public class SyntheticPatientGenerator {
+	static final String ID_NS = "http://mre.zcu.cz/id/";
+	static final int EVENTS_PER_PATIENT = 3;
+	static final int DEPARTMENTS = 20;
+	static final String[] CITIES = {"Plzeň", "Praha", "Klatovy", "Domažlice", "Rokycany", "Úněšov", "Stříbro", "Tachov"};
+	static final String[] DIAG_CODES = {"MKN105_K30", "MKN105_C910", "MKN105_K500", "MKN105_K510", "MKN105_E119"};
+	static final LocalDate EPOCH_START = LocalDate.of(1930, 1, 1);
+
+	public static void main(String[] in){
+		long triples = in.length > 0 ? Long.parseLong(in[0]) : 1_000_000;
+		Path file = Paths.get(in.length > 1 ? in[1] : "out/synthetic-" + triples + ".nt");
+
+		try {
+			if(file.getParent() != null)
+				Files.createDirectories(file.getParent());
+			long start = System.nanoTime();
+			long written;
+			try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)){
+				StreamRDF out = StreamRDFWriter.getWriterStream(os, RDFFormat.NTRIPLES_UTF8);
+				out.start();
+				written = generate(triples, 42, out);
+				out.finish();
+			}
+			System.out.format("%d triples written to %s in %.1f s%n", written, file, (System.nanoTime() - start) / 1e9);
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// in-memory model, for sizes which fit into heap
+	public static Model generateModel(long targetTriples, long seed){
+		Graph graph = GraphFactory.createDefaultGraph();
+		generate(targetTriples, seed, StreamRDFLib.graph(graph));
+		return ModelFactory.createModelForGraph(graph);
+	}
+
+	// emits whole patients until at least targetTriples are written; returns number of triples
+	public static long generate(long targetTriples, long seed, StreamRDF out){
+		Emitter e = new Emitter(out);
+		Random random = new Random(seed);
+
+		Node[] departments = new Node[DEPARTMENTS];
+		for(int d = 0; d < DEPARTMENTS; d++){
+			departments[d] = uri(ID_NS + "synthetic-department-" + d);
+			e.emit(departments[d], RDF.type.asNode(), DS.ORIGINATOR_DEPARTMENT.asNode());
+			e.emit(departments[d], DS.DEPARTMENT_NAME.asNode(), string("Fakultní nemocnice Plzeň, oddělení " + d));
+		}
+
+		for(long p = 0; e.count < targetTriples; p++){
+			String id = ID_NS + "synthetic-" + p;
+			Node patient = uri(id);
+			boolean male = random.nextBoolean();
+			LocalDate birth = EPOCH_START.plusDays(random.nextInt(80 * 365));
+
+			e.emit(patient, RDF.type.asNode(), DS.PATIENT_CLASS.asNode());
+			e.emit(patient, RDF.type.asNode(), (male ? DS.MALE : DS.FEMALE).asNode());
+			e.emit(patient, DS.FIRST_NAME.asNode(), string(String.valueOf((char) ('A' + random.nextInt(26)))));
+			e.emit(patient, DS.LAST_NAME.asNode(), string(String.valueOf((char) ('A' + random.nextInt(26)))));
+			e.emit(patient, DS.SEX.asNode(), string(male ? "M" : "F"));
+			e.emit(patient, DS.DATETIME_BIRTH.asNode(), NodeFactory.createLiteral(birth.toString(), XSDDatatype.XSDdate));
+
+			Node address = uri(id + "-address");
+			// a third in Plzeň, the rest spread over other cities
+			String city = random.nextInt(3) == 0 ? CITIES[0] : CITIES[1 + random.nextInt(CITIES.length - 1)];
+			e.emit(patient, DS.ADDRESS.asNode(), address);
+			e.emit(address, RDF.type.asNode(), DS.PERMANENT_ADDRESS.asNode());
+			e.emit(address, DS.ADDRESS_CITY.asNode(), string(city));
+			e.emit(address, DS.ADDRESS_ZIP.asNode(), string(String.valueOf(30000 + random.nextInt(9000))));
+			e.emit(address, DS.ADDRESS_CITY_PART.asNode(), string(city + " " + random.nextInt(10)));
+
+			for(int ev = 0; ev < EVENTS_PER_PATIENT; ev++){
+				Node event = uri(id + "-event-" + ev);
+				Node diagnosis = uri(id + "-diagnosis-" + ev);
+				LocalDateTime when = birth.plusDays(random.nextInt(20 * 365)).atTime(random.nextInt(24), random.nextInt(60));
+				String title = when + ": " + String.format("%03d/000 - vyšetření", random.nextInt(1000));
+
+				e.emit(patient, DS.CLINICAL_EVENT.asNode(), event);
+				e.emit(event, RDF.type.asNode(), DS.MEDICAL_EXAMINATION.asNode());
+				e.emit(event, DS.DATETIME_EVENT.asNode(), NodeFactory.createLiteral(when + ":00", XSDDatatype.XSDdateTime));
+				e.emit(event, DC.title.asNode(), string(title));
+				e.emit(event, DS.ORIGINATOR.asNode(), departments[random.nextInt(DEPARTMENTS)]);
+				e.emit(event, DS.DIAGNOSIS.asNode(), diagnosis);
+				e.emit(diagnosis, RDF.type.asNode(), DS.ACTUAL_DIAGNOSIS.asNode());
+				e.emit(diagnosis, DS.DIAG_CODE.asNode(), uri(DSCL.NS + DIAG_CODES[random.nextInt(DIAG_CODES.length)]));
+			}
+
+			Node ibd = uri(id + "-ibd");
+			Node therapy = uri(id + "-therapy");
+			e.emit(patient, IBD.HAS_INFLAMMATORY_BOWEL_DISEASE.asNode(), ibd);
+			e.emit(ibd, RDF.type.asNode(), IBD.INFLAMMATORY_BOWEL_DISEASE.asNode());
+			e.emit(ibd, IBD.DIAGNOSIS_DATE.asNode(), NodeFactory.createLiteral(birth.plusDays(random.nextInt(20 * 365)).toString(), XSDDatatype.XSDdate));
+			e.emit(ibd, IBD.HAS_THERAPY.asNode(), therapy);
+			e.emit(therapy, RDF.type.asNode(), IBD.THERAPY.asNode());
+		}
+
+		return e.count;
+	}
+
+	static Node uri(String uri){
+		return NodeFactory.createURI(uri);
+	}
+
+	static Node string(String value){
+		return NodeFactory.createLiteral(value, XSDDatatype.XSDstring);
+	}
+
+
+	private static class Emitter {
+		final StreamRDF out;
+		long count;
+
+		Emitter(StreamRDF out){
+			this.out = out;
+		}
+
+		void emit(Node s, Node p, Node o){
+			out.triple(Triple.create(s, p, o));
+			count++;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package cz.keiras.rdfExample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb.TDB;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.tdb.TDBLoader;
+import org.apache.jena.tdb.base.file.Location;
+import org.apache.jena.tdb.store.DatasetGraphTDB;
+import org.apache.jena.tdb.sys.TDBInternal;
+
+import cz.zcu.mre.vocab.DS;
+
+
+/*
+ * Persistent storage of the example data in TDB.
+ *
+ * RdfExplore parses dataset.rdf and the ontologies on every start. TDB keeps the data in B+tree
+ * indexes on disk (memory-mapped files on 64-bit JVMs), so once loaded the store opens in
+ * milliseconds and only the touched index pages are read.
+ *
+ * layout of the store:
+ * - default graph		data (example/dataset.rdf)
+ * - named graphs		ontologies, graph name = ontology URI (e.g. http://mre.zcu.cz/ontology/dasta.owl)
+ *
+ * usage:
+ * - TdbStore load							bulk load data + ontologies into an empty store (tdb/), print rdf:type profile of the data
+ * - TdbStore append <file> [graph URI]		add a file into existing store (default graph if no URI is given)
+ * - TdbStore materialize					store data + entailments of the ontologies into graph INFERRED_GRAPH
+ *											(Reasoning.Profile.MATERIALIZED), e.g. all ds:Patient incl. subclasses
+ *											are then plain index lookups in that graph
+ * - TdbStore								open the store (loads it first when empty) and run RdfExplore analyses on it
+ *
+ * TDB1 is used, it has the bulk loader (TDB2 in Jena 3.6 has none).
+ * */
+
+
+public class TdbStore {
+	static final String STORE_DIR = "tdb/";
+	static final String DATA_FILE = "example/dataset.rdf";
+	static final String DASTA_GRAPH = "http://mre.zcu.cz/ontology/dasta.owl";
+	static final String IBD_GRAPH = "http://mre.zcu.cz/ontology/ibd.owl";
+	static final String INFERRED_GRAPH = "http://mre.zcu.cz/graph/inferred";
+
+	public static void main(String[] in){
+		try {
+			if(in.length > 0 && in[0].equals("load")){
+				System.out.println(bulkLoad(STORE_DIR, DATA_FILE, Lang.NTRIPLES, exampleOntologies()));
+				printProfile(open(STORE_DIR));
+				return;
+			}
+			if(in.length > 0 && in[0].equals("materialize")){
+				System.out.println(materialize(open(STORE_DIR)));
+				return;
+			}
+			if(in.length > 1 && in[0].equals("append")){
+				Dataset dataset = open(STORE_DIR);
+				System.out.println(append(dataset, in[1], in.length > 2 ? in[2] : null, RDFLanguages.filenameToLang(in[1], Lang.NTRIPLES)));
+				return;
+			}
+
+			if(isEmpty(STORE_DIR))
+				System.out.println(bulkLoad(STORE_DIR, DATA_FILE, Lang.NTRIPLES, exampleOntologies()));
+
+			// measure opening of the store itself, not Jena class initialization
+			TDB.init();
+			long start = System.nanoTime();
+			Dataset dataset = open(STORE_DIR);
+			System.out.format("store opened in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+			// TDB is transactional, all reads need to be inside a transaction
+			dataset.begin(ReadWrite.READ);
+			try {
+				Model model = dataset.getDefaultModel();
+				RdfExplore.printResourcesOfTypes(model, RdfExplore.findAllNodeTypesInModel2(model));
+				RdfExplore.printPatientsByAge(model);
+				RdfExplore.printAddressesNotInPlzen(model);
+
+				RdfExplore.printPropertyInfo(DS.DATETIME_BIRTH, ontology(dataset, DASTA_GRAPH));
+
+				RdfExplore.traverseGraph(model, "http://mre.zcu.cz/id/ba613d1fc0d9300175611e31cca7cf9f525056cb");
+			} finally {
+				dataset.end();
+			}
+
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	// profile of the imported data: number of instances per rdf:type
+	static void printProfile(Dataset dataset){
+		TypeProfiler.Profile profile = Txn.calculateRead(dataset, () -> TypeProfiler.profile(dataset.getDefaultModel().getGraph()));
+		System.out.println(profile);
+		profile.counts().forEach((type, count) -> System.out.format("%8d  %s%n", count, type));
+	}
+
+	static Map<String, String> exampleOntologies(){
+		Map<String, String> ontologies = new LinkedHashMap<>();
+		ontologies.put(DASTA_GRAPH, "example/dasta.owl");
+		ontologies.put(IBD_GRAPH, "example/ibd.owl");
+		return ontologies;
+	}
+
+	public static boolean isEmpty(String dir){
+		return !Files.isDirectory(Paths.get(dir)) || TDBInternal.isNewDatabaseArea(Location.create(dir));
+	}
+
+	public static Dataset open(String dir){
+		return TDBFactory.createDataset(dir);
+	}
+
+	/*
+	 * Fills an empty store: data file via the TDB bulk loader into the default graph, then each ontology
+	 * (graph URI -> file) into its named graph. The bulk loader builds the indexes in one pass, it can be
+	 * used only for a new store and outside of transactions.
+	 */
+	public static LoadReport bulkLoad(String dir, String dataFile, Lang dataLang, Map<String, String> ontologies) throws IOException{
+		if(!isEmpty(dir))
+			throw new IllegalStateException("TDB store " + dir + " is not empty, use append");
+		Files.createDirectories(Paths.get(dir));
+
+		long start = System.nanoTime();
+		Dataset dataset = open(dir);
+		DatasetGraphTDB dsg = TDBInternal.getBaseDatasetGraphTDB(dataset.asDatasetGraph());
+
+		// N-Triples are valid N-Quads, stream goes straight into the loader regardless of file extension (dataset.rdf)
+		if(dataLang == Lang.NTRIPLES || dataLang == Lang.NQUADS){
+			try(InputStream is = Files.newInputStream(Paths.get(dataFile))){
+				TDBLoader.load(dsg, is, false);
+			}
+		} else
+			TDBLoader.load(dsg, Collections.singletonList(dataFile), false, false);
+		TDB.sync(dsg);
+
+		LoadReport report = new LoadReport(dataFile, dsg.getDefaultGraph().size(), System.nanoTime() - start);
+
+		for(Map.Entry<String, String> e : ontologies.entrySet())
+			report = report.plus(append(dataset, e.getValue(), e.getKey(), RDFLanguages.filenameToLang(e.getValue(), Lang.RDFXML)));
+
+		return report;
+	}
+
+	/*
+	 * Incremental path, adds a file into an existing store in a single write transaction.
+	 * graphUri == null -> default graph
+	 */
+	public static LoadReport append(Dataset dataset, String file, String graphUri, Lang lang){
+		long start = System.nanoTime();
+		long added;
+
+		dataset.begin(ReadWrite.WRITE);
+		try {
+			Model target = graphUri == null ? dataset.getDefaultModel() : dataset.getNamedModel(graphUri);
+			long before = target.size();
+			RDFDataMgr.read(target, file, lang);
+			added = target.size() - before;
+			dataset.commit();
+		} finally {
+			dataset.end();
+		}
+
+		return new LoadReport(file, added, System.nanoTime() - start);
+	}
+
+	/*
+	 * Replaces INFERRED_GRAPH by the default graph + all entailments of the ontology graphs (OWL micro rules).
+	 * The schema is built by Reasoning.schema like from the files: the stored graphs with their owl:imports,
+	 * which are not in the store. Inference runs in memory in a read transaction, the result is written in one
+	 * write transaction.
+	 */
+	public static LoadReport materialize(Dataset dataset){
+		long start = System.nanoTime();
+		Model inferred = Txn.calculateRead(dataset, () -> Reasoning.dataModel(
+				dataset.getDefaultModel(),
+				Reasoning.schema(dataset.getNamedModel(DASTA_GRAPH), dataset.getNamedModel(IBD_GRAPH)),
+				Reasoning.Profile.MATERIALIZED));
+
+		Txn.executeWrite(dataset, () -> {
+			Model target = dataset.getNamedModel(INFERRED_GRAPH);
+			target.removeAll();
+			target.add(inferred);
+		});
+		return new LoadReport(INFERRED_GRAPH, inferred.size(), System.nanoTime() - start);
+	}
+
+	/*
+	 * Ontology model over a stored ontology graph; same spec as ModelFactory.createOntologyModel() in RdfExplore.loadOntology,
+	 * but the base graph is read from TDB instead of parsing the OWL file. Must be used inside a read transaction.
+	 */
+	public static OntModel ontology(Dataset dataset, String graphUri){
+		return ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM_RDFS_INF, dataset.getNamedModel(graphUri));
+	}
+
+
+	public static class LoadReport {
+		public final String source;
+		public final long triples;
+		public final long nanos;
+
+		LoadReport(String source, long triples, long nanos){
+			this.source = source;
+			this.triples = triples;
+			this.nanos = nanos;
+		}
+
+		LoadReport plus(LoadReport other){
+			return new LoadReport(source + ", " + other.source, triples + other.triples, nanos + other.nanos);
+		}
+
+		public double triplesPerSecond(){
+			return nanos == 0 ? Double.NaN : triples * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("loaded %d triples from [%s] in %.1f ms (%.0f triples/s)", triples, source, nanos / 1e6, triplesPerSecond());
+		}
+	}
+}
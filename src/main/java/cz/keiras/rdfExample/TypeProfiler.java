@@ -0,0 +1,286 @@
+package cz.keiras.rdfExample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+
+
+/*
+ * Profile of rdf:type in a graph: for every type the number of its instances and the set of instances.
+ *
+ * printResourcesOfTypes used one listResourcesWithProperty(rdf:type, type) scan per type and built whole lists of
+ * Resources just to print them. The profiler reads ?s rdf:type ?o exactly once, every type keeps its instances
+ * as a sorted int[] of subject ids - 4 bytes per instance, membership by binary search.
+ *
+ * CompactGraph (read-only snapshot): the rdf:type triples are one contiguous range of its POS index, sorted by
+ * type and subject, and terms are ids already. The range is split into sub-ranges scanned in parallel (fork-join),
+ * each one yields runs of (type, sorted subject ids); adjacent runs of one type are concatenated, which keeps them
+ * sorted. Subject ids are the dictionary ids of the graph, types are in the order of their ids.
+ *
+ * Other graphs (GraphMem, TDB, inference models) have no partitioned iterators, they are scanned sequentially by
+ * find(); subjects and types are dictionary-encoded and grouped by type while reading. Subject ids follow the
+ * order in which subjects were first seen, types too.
+ *
+ * Either way the output based on the ids is stable for one graph.
+ * */
+
+
+public class TypeProfiler {
+	// smaller ranges of the POS index are scanned in the calling thread
+	static final int PARALLEL_THRESHOLD = 1 << 14;
+
+	public static Profile profile(Graph graph){
+		if(graph instanceof CompactGraph)
+			return profile((CompactGraph) graph, ForkJoinPool.commonPool());
+		return scan(graph);
+	}
+
+	// partitioned parallel scan of the rdf:type range
+	public static Profile profile(CompactGraph graph, ForkJoinPool pool){
+		long start = System.nanoTime();
+		int[] range = graph.predicateRange(RDF.Nodes.type);
+		List<Run> runs = pool.invoke(new ScanRange(graph, range[0], range[1]));
+		long scanNanos = System.nanoTime() - start;
+
+		Node[] types = new Node[runs.size()];
+		Map<Node, Integer> typeIds = new LinkedHashMap<>();
+		int[][] instances = new int[runs.size()][];
+		for(int t = 0; t < types.length; t++){
+			types[t] = graph.node(runs.get(t).type);
+			typeIds.put(types[t], t);
+			instances[t] = runs.get(t).subjects.array();
+		}
+
+		// a subject of several types is in several runs
+		int[] all = new int[range[1] - range[0]];
+		int filled = 0;
+		for(int[] ids : instances){
+			System.arraycopy(ids, 0, all, filled, ids.length);
+			filled += ids.length;
+		}
+		Arrays.parallelSort(all);
+		int typedSubjects = 0;
+		for(int i = 0; i < all.length; i++)
+			if(i == 0 || all[i] != all[i - 1])
+				typedSubjects++;
+
+		return new Profile(graph::node, graph::termId, typedSubjects, types, typeIds, instances,
+				all.length, scanNanos, System.nanoTime() - start);
+	}
+
+	// sequential scan by find()
+	static Profile scan(Graph graph){
+		long start = System.nanoTime();
+
+		Map<Node, Integer> subjectIds = new HashMap<>();
+		Map<Node, Integer> typeIds = new LinkedHashMap<>();
+		List<Node> subjects = new ArrayList<>();
+		List<Node> types = new ArrayList<>();
+		List<IntList> groups = new ArrayList<>();
+		long statements = 0;
+
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, RDF.type.asNode(), Node.ANY);
+		try {
+			while(it.hasNext()){
+				Triple t = it.next();
+				int subject = intern(t.getSubject(), subjectIds, subjects);
+				int type = intern(t.getObject(), typeIds, types);
+				if(type == groups.size())
+					groups.add(new IntList());
+				groups.get(type).add(subject);
+				statements++;
+			}
+		} finally {
+			it.close();
+		}
+		long scanNanos = System.nanoTime() - start;
+
+		int[][] instances = new int[types.size()][];
+		for(int t = 0; t < instances.length; t++){
+			instances[t] = groups.get(t).array();
+			Arrays.sort(instances[t]);
+		}
+
+		return new Profile(subjects::get, node -> subjectIds.getOrDefault(node, -1), subjects.size(),
+				types.toArray(new Node[0]), typeIds, instances, statements, scanNanos, System.nanoTime() - start);
+	}
+
+	private static int intern(Node node, Map<Node, Integer> ids, List<Node> nodes){
+		Integer id = ids.get(node);
+		if(id == null){
+			id = nodes.size();
+			ids.put(node, id);
+			nodes.add(node);
+		}
+		return id;
+	}
+
+
+	// subjects of one type in a part of the POS range (term ids, ascending)
+	private static class Run {
+		final int type;
+		final IntList subjects = new IntList();
+
+		Run(int type){
+			this.type = type;
+		}
+	}
+
+
+	// runs of the POS positions [from, to) in index order
+	private static class ScanRange extends RecursiveTask<List<Run>> {
+		private static final long serialVersionUID = 1L;
+
+		final CompactGraph graph;
+		final int from;
+		final int to;
+
+		ScanRange(CompactGraph graph, int from, int to){
+			this.graph = graph;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<Run> compute(){
+			if(to - from <= PARALLEL_THRESHOLD){
+				List<Run> runs = new ArrayList<>();
+				Run run = null;
+				for(int position = from; position < to; position++){
+					int type = graph.objectAt(position);
+					if(run == null || run.type != type){
+						run = new Run(type);
+						runs.add(run);
+					}
+					run.subjects.add(graph.subjectAt(position));
+				}
+				return runs;
+			}
+
+			int mid = (from + to) >>> 1;
+			ScanRange left = new ScanRange(graph, from, mid);
+			left.fork();
+			List<Run> right = new ScanRange(graph, mid, to).compute();
+			List<Run> runs = left.join();
+
+			// a type cut by mid continues in the first run on the right
+			int first = 0;
+			if(!runs.isEmpty() && !right.isEmpty() && runs.get(runs.size() - 1).type == right.get(0).type){
+				runs.get(runs.size() - 1).subjects.addAll(right.get(0).subjects);
+				first = 1;
+			}
+			runs.addAll(right.subList(first, right.size()));
+			return runs;
+		}
+	}
+
+
+	// growable int array, avoids boxing of ArrayList<Integer>
+	private static class IntList {
+		int[] values = new int[16];
+		int size = 0;
+
+		void add(int value){
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void addAll(IntList other){
+			if(size + other.size > values.length)
+				values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+			System.arraycopy(other.values, 0, values, size, other.size);
+			size += other.size;
+		}
+
+		int[] array(){
+			return size == values.length ? values : Arrays.copyOf(values, size);
+		}
+	}
+
+
+	public static class Profile {
+		// subject id -> node and back (negative = not a subject of the graph)
+		private final IntFunction<Node> subjectNode;
+		private final ToIntFunction<Node> subjectId;
+		private final int typedSubjects;
+		private final Node[] types;
+		private final Map<Node, Integer> typeIds;
+		private final int[][] instances;
+		public final long typeStatements;
+		public final long scanNanos;
+		public final long nanos;
+
+		Profile(IntFunction<Node> subjectNode, ToIntFunction<Node> subjectId, int typedSubjects, Node[] types,
+				Map<Node, Integer> typeIds, int[][] instances, long typeStatements, long scanNanos, long nanos){
+			this.subjectNode = subjectNode;
+			this.subjectId = subjectId;
+			this.typedSubjects = typedSubjects;
+			this.types = types;
+			this.typeIds = typeIds;
+			this.instances = instances;
+			this.typeStatements = typeStatements;
+			this.scanNanos = scanNanos;
+			this.nanos = nanos;
+		}
+
+		// types in the order of their ids
+		public List<Node> getTypes(){
+			return Collections.unmodifiableList(Arrays.asList(types));
+		}
+
+		public int typedSubjects(){
+			return typedSubjects;
+		}
+
+		public int count(Node type){
+			Integer t = typeIds.get(type);
+			return t == null ? 0 : instances[t].length;
+		}
+
+		// instances of the type, in the order of subject ids
+		public List<Node> instances(Node type){
+			Integer t = typeIds.get(type);
+			if(t == null)
+				return Collections.emptyList();
+			List<Node> result = new ArrayList<>(instances[t].length);
+			for(int s : instances[t])
+				result.add(subjectNode.apply(s));
+			return result;
+		}
+
+		public boolean isInstance(Node subject, Node type){
+			Integer t = typeIds.get(type);
+			int s = subjectId.applyAsInt(subject);
+			return t != null && s >= 0 && Arrays.binarySearch(instances[t], s) >= 0;
+		}
+
+		// type -> number of instances, types in the order of their ids
+		public Map<Node, Integer> counts(){
+			Map<Node, Integer> counts = new LinkedHashMap<>();
+			for(int t = 0; t < types.length; t++)
+				counts.put(types[t], instances[t].length);
+			return counts;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("rdf:type profile: %d statements, %d subjects, %d types in %.1f ms (scan %.1f ms)",
+					typeStatements, typedSubjects, types.length, nanos / 1e6, scanNanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package cz.keiras.rdfExample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.jena.atlas.web.HttpException;
+import org.apache.jena.fuseki.embedded.FusekiServer;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.modify.request.UpdateDataDelete;
+import org.apache.jena.sparql.modify.request.UpdateDataInsert;
+import org.apache.jena.system.Txn;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateExecutionFactory;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+
+
+/*
+ * Collects SPARQL UPDATE operations and sends them in batches.
+ *
+ * Fuseki.fusekiUpdate() makes one HTTP request per operation. The batcher appends operations into one
+ * UpdateRequest ("op1 ; op2 ; ...") and sends it when
+ * - it contains maxOps operations, or
+ * - the oldest operation waits longer than maxDelayMs, or
+ * - flush()/close() is called.
+ * A request is executed by the server in a single transaction, so every batch is applied atomically;
+ * locally (Dataset target) it is executed inside a write transaction. A batch has at most maxOps operations,
+ * a longer queue (operations added while a batch was sent, or put back after a failure) goes in several batches.
+ *
+ * Retries (up to maxRetries, exponential backoff) must not apply a batch twice:
+ * - the request was not sent (connection refused, connect or pool timeout) or the server refused it before
+ *   executing (HTTP 408, 429, 503) -> any batch is retried
+ * - no response after it was sent (socket timeout, reset) or another 5xx: the server may have committed it,
+ *   only batches of INSERT DATA / DELETE DATA operations (applying them twice changes nothing) and Graph Store
+ *   POSTs of bulkLoad (skolemized) are retried
+ * - other errors (e.g. 400 - invalid update) are thrown immediately
+ * A batch is sent (and retried) outside the lock of the queue, add() does not wait for it unless it fills
+ * a new batch. A failed batch goes back to the front of the queue; when the failure happened on the timer
+ * thread, it is thrown by the next add()/flush()/close(), the operations stay queued for the next flush().
+ * send() skips the queue for callers which need to know that their request was applied (ChangeTracker.sync).
+ *
+ * Bulk data go through the Graph Store Protocol instead of INSERT DATA (see bulkLoad), the file is
+ * parsed as a stream and posted in chunks, so it does not need to fit into memory. Blank nodes are sent
+ * as skolem IRIs (SKOLEM_PREFIX + label): a node is the same in all chunks and a retried POST adds nothing twice.
+ * */
+
+
+public class UpdateBatcher implements Closeable {
+	public static final int DEFAULT_MAX_OPS = 500;
+	public static final long DEFAULT_MAX_DELAY_MS = 200;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	static final long RETRY_BACKOFF_MS = 100;
+	// RDF 1.1 skolem IRIs; RIOT labels blank nodes by a random per-document seed, labels of two loads differ
+	public static final String SKOLEM_PREFIX = "http://mre.zcu.cz/.well-known/genid/";
+
+	private final Consumer<UpdateRequest> target;
+	// Graph Store Protocol POST of the same endpoint (graph URI, null = default graph)
+	private final BiConsumer<String, Model> loader;
+	private final int maxOps;
+	private final long maxDelayMs;
+	private final int maxRetries;
+	private final ScheduledExecutorService timer;
+
+	private UpdateRequest pending = new UpdateRequest();
+	private int pendingOps = 0;
+	private ScheduledFuture<?> pendingFlush = null;
+	// failure of a timer flush, thrown to the next caller
+	private RuntimeException failure = null;
+	// one batch on the wire at a time, batches are applied in the order of add()
+	private final Object sendLock = new Object();
+
+	private final List<BatchStats> stats = new ArrayList<>();
+
+	public static void main(String[] arg){
+		Dataset dataset = EmbeddedFuseki.exampleDataset();
+		FusekiServer server = EmbeddedFuseki.start(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME, dataset);
+		try(SparqlClient client = new SparqlClient(EmbeddedFuseki.serviceUrl(EmbeddedFuseki.PORT, EmbeddedFuseki.DATASET_NAME))){
+			// migration from Fuseki.main, but as one operation per patient
+			try(UpdateBatcher batcher = new UpdateBatcher(client)){
+				for(QuerySolution row : client.select(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_IBD)))
+					batcher.add(moveTherapyOfPatient(row.getResource("patient").getURI()));
+				batcher.flush();
+				batcher.getStats().forEach(System.out :: println);
+			}
+			System.out.println(client.select(Fuseki.TEMPLATES.query(Fuseki.SELECT_THERAPY_ON_PATIENT)));
+
+			try(UpdateBatcher batcher = new UpdateBatcher(client)){
+				batcher.bulkLoad(null, Paths.get("example/dataset.rdf"), Lang.NTRIPLES, 100);
+				batcher.getStats().forEach(System.out :: println);
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		} finally {
+			server.stop();
+		}
+	}
+
+	// Fuseki.moveTherapyFromIbdToPatient() restricted to one patient: ?patient of the template is bound
+	static UpdateRequest moveTherapyOfPatient(String patientUri){
+		return Fuseki.TEMPLATES.update(Fuseki.MOVE_THERAPY_TO_PATIENT, Collections.singletonMap("patient", QueryTemplates.uri(patientUri)));
+	}
+
+	public UpdateBatcher(SparqlClient client){
+		this(client, DEFAULT_MAX_OPS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_RETRIES);
+	}
+
+	public UpdateBatcher(SparqlClient client, int maxOps, long maxDelayMs, int maxRetries){
+		this(client::update, client::load, maxOps, maxDelayMs, maxRetries);
+	}
+
+	// batches executed in-process, each one in a write transaction; the cache of Fuseki is invalidated like by
+	// fusekiUpdate when the dataset is its local one, also after a failure
+	public UpdateBatcher(Dataset dataset, int maxOps, long maxDelayMs){
+		this(request -> {
+					try {
+						Txn.executeWrite(dataset, () -> UpdateExecutionFactory.create(request, dataset).execute());
+					} finally {
+						Fuseki.updatedLocal(dataset, request);
+					}
+				},
+				(graphUri, model) -> {
+					try {
+						Txn.executeWrite(dataset, () -> (graphUri == null ? dataset.getDefaultModel() : dataset.getNamedModel(graphUri)).add(model));
+					} finally {
+						Fuseki.loadedLocal(dataset, model);
+					}
+				},
+				maxOps, maxDelayMs, 0);
+	}
+
+	UpdateBatcher(Consumer<UpdateRequest> target, BiConsumer<String, Model> loader, int maxOps, long maxDelayMs, int maxRetries){
+		this.target = target;
+		this.loader = loader;
+		this.maxOps = maxOps;
+		this.maxDelayMs = maxDelayMs;
+		this.maxRetries = maxRetries;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "update-batcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// parses the update (may contain several operations separated by ';') and queues it
+	public void add(String update){
+		add(UpdateFactory.create(update));
+	}
+
+	// throws the failure of a timer flush, if any; the request is not queued then
+	public void add(UpdateRequest request){
+		boolean full;
+		synchronized(this){
+			throwFailure();
+			for(String prefix : request.getPrefixMapping().getNsPrefixMap().keySet())
+				pending.setPrefix(prefix, request.getPrefixMapping().getNsPrefixURI(prefix));
+			for(Update op : request.getOperations()){
+				pending.add(op);
+				pendingOps++;
+			}
+
+			full = pendingOps >= maxOps;
+			if(!full && pendingFlush == null)
+				pendingFlush = timer.schedule(this::flushQuietly, maxDelayMs, TimeUnit.MILLISECONDS);
+		}
+		if(full)
+			flush();
+	}
+
+	/*
+	 * Sends queued operations in requests of at most maxOps operations. The queue is taken under the lock,
+	 * sent outside of it; when a request fails, it and the requests after it are put back in front of operations
+	 * added meanwhile. Throws the failure of an earlier timer flush first.
+	 */
+	public void flush(){
+		synchronized(sendLock){
+			UpdateRequest request;
+			int ops;
+			synchronized(this){
+				throwFailure();
+				if(pendingFlush != null){
+					pendingFlush.cancel(false);
+					pendingFlush = null;
+				}
+				if(pendingOps == 0)
+					return;
+				request = pending;
+				ops = pendingOps;
+				pending = new UpdateRequest();
+				pendingOps = 0;
+			}
+
+			List<Update> operations = request.getOperations();
+			for(int from = 0; from < ops; from += maxOps){
+				UpdateRequest batch = new UpdateRequest();
+				batch.getPrefixMapping().setNsPrefixes(request.getPrefixMapping());
+				operations.subList(from, Math.min(from + maxOps, ops)).forEach(batch::add);
+
+				long start = System.nanoTime();
+				int attempts;
+				try {
+					attempts = sendWithRetry(batch);
+				} catch (RuntimeException e) {
+					requeue(request, from);
+					throw e;
+				}
+				synchronized(this){
+					stats.add(new BatchStats(batch.getOperations().size(), 0, attempts, System.nanoTime() - start));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Sends the request now, after the queued operations (flush), with the retries of batches.
+	 * Returns when the request was applied, a failure is thrown and nothing is queued.
+	 */
+	public void send(UpdateRequest request){
+		synchronized(sendLock){
+			flush();
+			long start = System.nanoTime();
+			int attempts = sendWithRetry(request);
+			synchronized(this){
+				stats.add(new BatchStats(request.getOperations().size(), 0, attempts, System.nanoTime() - start));
+			}
+		}
+	}
+
+	public int getMaxOps(){
+		return maxOps;
+	}
+
+	// operations of the request from the first unsent one go back in front of the queue
+	private synchronized void requeue(UpdateRequest request, int sent){
+		UpdateRequest unsent = new UpdateRequest();
+		unsent.getPrefixMapping().setNsPrefixes(request.getPrefixMapping());
+		List<Update> operations = request.getOperations();
+		operations.subList(sent, operations.size()).forEach(unsent::add);
+		for(Update op : pending.getOperations())
+			unsent.add(op);
+		for(String prefix : pending.getPrefixMapping().getNsPrefixMap().keySet())
+			unsent.setPrefix(prefix, pending.getPrefixMapping().getNsPrefixURI(prefix));
+		pendingOps += operations.size() - sent;
+		pending = unsent;
+	}
+
+	private void throwFailure(){
+		RuntimeException e = failure;
+		if(e != null){
+			failure = null;
+			throw e;
+		}
+	}
+
+	private void flushQuietly(){
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			// nobody waits for the timer thread, the next caller gets the failure
+			synchronized(this){
+				if(failure == null)
+					failure = e;
+			}
+		}
+	}
+
+	/*
+	 * Streams the file to the Graph Store Protocol endpoint of the batcher in chunks of chunkTriples triples,
+	 * each chunk is one POST (retried like update batches). graphUri == null -> default graph.
+	 * Blank nodes are skolemized (see skolemize), so chunks share them and a repeated POST changes nothing.
+	 */
+	public void bulkLoad(String graphUri, Path file, Lang lang, int chunkTriples) throws IOException{
+		try(InputStream is = Files.newInputStream(file)){
+			RDFDataMgr.parse(new StreamRDFBase(){
+				Graph chunk = GraphFactory.createDefaultGraph();
+
+				@Override
+				public void triple(Triple triple){
+					chunk.add(skolemize(triple));
+					if(chunk.size() >= chunkTriples)
+						send();
+				}
+
+				@Override
+				public void finish(){
+					if(!chunk.isEmpty())
+						send();
+				}
+
+				void send(){
+					Graph g = chunk;
+					chunk = GraphFactory.createDefaultGraph();
+					long start = System.nanoTime();
+					// skolemized triples, a repeated POST adds nothing
+					int attempts = withRetry(() -> loader.accept(graphUri, ModelFactory.createModelForGraph(g)), true);
+					synchronized(UpdateBatcher.this){
+						stats.add(new BatchStats(0, g.size(), attempts, System.nanoTime() - start));
+					}
+				}
+			}, is, lang);
+		}
+	}
+
+	// blank node -> skolem IRI with its label, other nodes unchanged
+	public static Node skolemize(Node node){
+		return node.isBlank() ? NodeFactory.createURI(SKOLEM_PREFIX + node.getBlankNodeLabel()) : node;
+	}
+
+	public static Triple skolemize(Triple t){
+		if(!t.getSubject().isBlank() && !t.getObject().isBlank())
+			return t;
+		return Triple.create(skolemize(t.getSubject()), t.getPredicate(), skolemize(t.getObject()));
+	}
+
+	private int sendWithRetry(UpdateRequest request){
+		return withRetry(() -> target.accept(request), isIdempotent(request));
+	}
+
+	// INSERT DATA and DELETE DATA only: applying the request twice gives the same data
+	static boolean isIdempotent(UpdateRequest request){
+		for(Update op : request.getOperations())
+			if(!(op instanceof UpdateDataInsert || op instanceof UpdateDataDelete))
+				return false;
+		return true;
+	}
+
+	// runs the call, retries failures which cannot apply it twice; returns number of attempts
+	private int withRetry(Runnable call, boolean idempotent){
+		for(int attempt = 1; ; attempt++){
+			try {
+				call.run();
+				return attempt;
+			} catch (HttpException | QueryExceptionHTTP e) {
+				if(attempt > maxRetries || !isRetryable(e, idempotent))
+					throw e;
+				try {
+					Thread.sleep(RETRY_BACKOFF_MS << (attempt - 1));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	static boolean isRetryable(RuntimeException e, boolean idempotent){
+		if(notSent(e))
+			return true;
+		int code = e instanceof HttpException
+				? ((HttpException) e).getResponseCode()
+				: ((QueryExceptionHTTP) e).getResponseCode();
+		// refused before execution
+		if(code == 408 || code == 429 || code == 503)
+			return true;
+		// -1: no response after the request was sent (socket timeout, reset), 5xx: may be committed
+		return idempotent && (code <= 0 || code >= 500);
+	}
+
+	// the request never reached the server: no connection, or no free connection in the pool
+	static boolean notSent(Throwable e){
+		for(Throwable cause = e; cause != null; cause = cause.getCause())
+			if(cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+					|| cause instanceof ConnectionPoolTimeoutException || cause instanceof UnknownHostException)
+				return true;
+		return false;
+	}
+
+	public synchronized List<BatchStats> getStats(){
+		return new ArrayList<>(stats);
+	}
+
+	// sends what is left and stops the timer; unsent operations are lost when this throws
+	@Override
+	public void close(){
+		try {
+			flush();
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+
+	public static class BatchStats {
+		public final int operations;
+		public final long triples;
+		public final int attempts;
+		public final long nanos;
+
+		BatchStats(int operations, long triples, int attempts, long nanos){
+			this.operations = operations;
+			this.triples = triples;
+			this.attempts = attempts;
+			this.nanos = nanos;
+		}
+
+		public double opsPerSecond(){
+			return nanos == 0 ? Double.NaN : operations * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString(){
+			if(operations == 0)
+				return String.format("GSP chunk: %d triples in %.1f ms (%.0f triples/s, %d attempts)", triples, nanos / 1e6, triples * 1e9 / nanos, attempts);
+			return String.format("update batch: %d ops in %.1f ms (%.0f ops/s, %d attempts)", operations, nanos / 1e6, opsPerSecond(), attempts);
+		}
+	}
+}